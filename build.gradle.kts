@@ -24,11 +24,29 @@ spotless {
     }
 }
 
+sourceSets {
+    create("benchmark") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
 dependencies {
     compileOnly(libs.paper.api)
     compileOnly(libs.velocity.api)
     compileOnly(libs.configurate.core)
     compileOnly(libs.configurate.yaml)
+
+    "benchmarkImplementation"(libs.gson)
+}
+
+// Plain-main throughput benchmarks, e.g. ./gradlew benchmark -Pbenchmark=ExecutionModeBenchmark
+tasks.register<JavaExec>("benchmark") {
+    group = "verification"
+    description = "Runs one of the receiver benchmarks in src/benchmark."
+    classpath = sourceSets["benchmark"].runtimeClasspath
+    mainClass.set("com.vexsoftware.votifier.common.net." + (findProperty("benchmark") ?: "ExecutionModeBenchmark"))
+    jvmArgs("-Xms512m", "-Xmx512m")
 }
 
 tasks.processResources {
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timing loop shared by the plain-main benchmarks in this source set. A case
+ * is warmed up, then run for several fixed-length rounds on the requested
+ * number of threads; the best round is reported so one GC pause or late JIT
+ * compile does not decide the result. Round lengths can be changed with
+ * {@code -Dbench.warmupMs}, {@code -Dbench.roundMs} and {@code -Dbench.rounds}.
+ */
+final class Bench {
+
+	static final long WARMUP_MS = Long.getLong("bench.warmupMs", 3000L);
+	static final long ROUND_MS = Long.getLong("bench.roundMs", 2000L);
+	static final int ROUNDS = Integer.getInteger("bench.rounds", 5);
+
+	/** Keeps results reachable so the JIT cannot drop the measured work. */
+	static volatile int sink;
+
+	interface Operation {
+		Object run() throws Exception;
+	}
+
+	private Bench() {
+	}
+
+	/**
+	 * Measures {@code operation} on {@code threads} threads and prints the
+	 * best round.
+	 *
+	 * @return operations per second in the best round
+	 */
+	static double run(String name, int threads, Operation operation) throws Exception {
+		round(threads, operation, WARMUP_MS);
+		double best = 0;
+		for (int i = 0; i < ROUNDS; i++) {
+			best = Math.max(best, round(threads, operation, ROUND_MS));
+		}
+		System.out.printf("%-44s %2d thread(s) %,14.0f ops/s %,12.1f ns/op%n", name, threads, best,
+				threads * 1e9 / best);
+		return best;
+	}
+
+	/**
+	 * Heap bytes allocated per call of {@code operation} on the calling
+	 * thread, after the same warm-up as {@link #run}.
+	 */
+	static double allocatedPerOp(Operation operation) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long warmupEnd = System.nanoTime() + WARMUP_MS * 1_000_000L;
+		while (System.nanoTime() < warmupEnd) {
+			operation.run();
+		}
+		int local = 0;
+		long iterations = 0;
+		long thread = Thread.currentThread().threadId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		long end = System.nanoTime() + ROUND_MS * 1_000_000L;
+		while (System.nanoTime() < end) {
+			local += operation.run() == null ? 0 : 1;
+			iterations++;
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		sink += local;
+		return (double) allocated / iterations;
+	}
+
+	private static double round(int threads, Operation operation, long durationMs) throws Exception {
+		LongAdder completed = new LongAdder();
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		Exception[] failure = new Exception[1];
+		long[] deadline = new long[1];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread(() -> {
+				int local = 0;
+				long count = 0;
+				try {
+					start.await();
+					while (System.nanoTime() < deadline[0]) {
+						Object result = operation.run();
+						local += result == null ? 0 : 1;
+						count++;
+					}
+				} catch (Exception ex) {
+					synchronized (failure) {
+						failure[0] = ex;
+					}
+				}
+				completed.add(count);
+				sink += local;
+			}, "Bench-" + t);
+			workers[t].start();
+		}
+		long begin = System.nanoTime();
+		deadline[0] = begin + durationMs * 1_000_000L;
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - begin;
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return completed.sum() * 1e9 / elapsed;
+	}
+}
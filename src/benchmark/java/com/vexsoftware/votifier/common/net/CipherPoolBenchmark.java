@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+
+import com.vexsoftware.votifier.common.crypto.CipherPool;
+import com.vexsoftware.votifier.common.crypto.RSA;
+import com.vexsoftware.votifier.common.crypto.RSAKeygen;
+
+/**
+ * RSA work per V1 vote with and without {@link CipherPool}: decrypting an
+ * incoming block, and encrypting a block for a forward destination whose
+ * public key is configured as Base64 text. The unpooled cases are what the
+ * receiver did before, a new cipher for every block and the forward key
+ * parsed again for every vote.
+ */
+public final class CipherPoolBenchmark {
+
+	private CipherPoolBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Integer.getInteger("bench.threads", Runtime.getRuntime().availableProcessors());
+		KeyPair keyPair = RSAKeygen.generate(2048);
+		String forwardKey = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+		byte[] vote = "VOTE\nminecraft-server-list.example\nNotch_1234\n203.0.113.54\n1760683525123\n"
+				.getBytes(StandardCharsets.UTF_8);
+		byte[] block = RSA.encrypt(vote, keyPair.getPublic());
+
+		CipherPool decrypt = new CipherPool(Cipher.DECRYPT_MODE, keyPair.getPrivate(), threads);
+		ConcurrentHashMap<String, CipherPool> encrypt = new ConcurrentHashMap<String, CipherPool>();
+
+		Bench.run("cipher setup only, private key", threads, () -> {
+			Cipher cipher = Cipher.getInstance("RSA");
+			cipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+			return cipher;
+		});
+		Bench.run("cipher setup only, forward key parsed", threads, () -> {
+			Cipher cipher = Cipher.getInstance("RSA");
+			cipher.init(Cipher.ENCRYPT_MODE, parsePublicKey(forwardKey));
+			return cipher;
+		});
+		Bench.run("decrypt, new cipher per block", threads, () -> RSA.decrypt(block, keyPair.getPrivate()));
+		Bench.run("decrypt, CipherPool", threads, () -> decrypt.doFinal(block, 0, block.length));
+		Bench.run("forward encrypt, key parsed + new cipher", threads,
+				() -> RSA.encrypt(vote, parsePublicKey(forwardKey)));
+		Bench.run("forward encrypt, CipherPool per key", threads, () -> {
+			CipherPool pool = encrypt.get(forwardKey);
+			if (pool == null) {
+				pool = new CipherPool(Cipher.ENCRYPT_MODE, parsePublicKey(forwardKey), threads);
+				CipherPool existing = encrypt.putIfAbsent(forwardKey, pool);
+				if (existing != null) {
+					pool = existing;
+				}
+			}
+			return pool.doFinal(vote, 0, vote.length);
+		});
+		System.out.printf("allocated per decrypt: new cipher %,.0f B, CipherPool %,.0f B%n",
+				Bench.allocatedPerOp(() -> RSA.decrypt(block, keyPair.getPrivate())),
+				Bench.allocatedPerOp(() -> decrypt.doFinal(block, 0, block.length)));
+	}
+
+	private static PublicKey parsePublicKey(String key) throws Exception {
+		byte[] encoded = Base64.getDecoder().decode(key);
+		return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+	}
+}
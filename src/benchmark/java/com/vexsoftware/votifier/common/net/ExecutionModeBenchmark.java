@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.Key;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.vexsoftware.votifier.common.ForwardServer;
+import com.vexsoftware.votifier.common.crypto.RSA;
+import com.vexsoftware.votifier.common.crypto.RSAKeygen;
+import com.vexsoftware.votifier.model.Vote;
+
+/**
+ * End-to-end V1 vote throughput of a local receiver for each transport with
+ * PLATFORM and VIRTUAL execution. Every client connects, reads the greeting,
+ * waits {@code -Dbench.thinkMs} before sending its vote (a vote site on a
+ * slow link), then waits for the response; a connection is counted only when
+ * the receiver answered ok. Client count and run length come from
+ * {@code -Dbench.clients} and {@code -Dbench.seconds}.
+ */
+public final class ExecutionModeBenchmark {
+
+	private static final int CLIENTS = Integer.getInteger("bench.clients", 256);
+	private static final long THINK_MS = Long.getLong("bench.thinkMs", 20L);
+	private static final long SECONDS = Long.getLong("bench.seconds", 10L);
+	private static final long WARMUP_SECONDS = 3L;
+
+	private ExecutionModeBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		KeyPair keyPair = RSAKeygen.generate(2048);
+		System.out.printf("%d clients, %dms think time, %ds per case, %d CPU(s)%n", CLIENTS, THINK_MS, SECONDS,
+				Runtime.getRuntime().availableProcessors());
+		for (String transport : Arrays.asList("BLOCKING", "NIO")) {
+			for (String execution : Arrays.asList("PLATFORM", "VIRTUAL")) {
+				run(keyPair, transport, execution);
+			}
+		}
+	}
+
+	private static void run(KeyPair keyPair, String transport, String execution) throws Exception {
+		int port;
+		try (ServerSocket probe = new ServerSocket(0)) {
+			port = probe.getLocalPort();
+		}
+		ReceiverConfig config = ReceiverConfig.builder().transport(transport).execution(execution)
+				.maxConnectionsPerIp(CLIENTS * 2).acceptBacklog(CLIENTS * 2).build();
+		BenchReceiver receiver = new BenchReceiver(port, config, keyPair);
+		receiver.start();
+		Thread.sleep(500);
+
+		AtomicBoolean measuring = new AtomicBoolean();
+		AtomicBoolean stop = new AtomicBoolean();
+		LongAdder ok = new LongAdder();
+		LongAdder failed = new LongAdder();
+		AtomicLong sequence = new AtomicLong();
+		long[][] latencies = new long[CLIENTS][];
+		int[] latencyCounts = new int[CLIENTS];
+
+		ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+		for (int c = 0; c < CLIENTS; c++) {
+			final int client = c;
+			latencies[c] = new long[1024];
+			clients.execute(() -> {
+				while (!stop.get()) {
+					long begin = System.nanoTime();
+					boolean accepted = vote(port, keyPair, sequence.incrementAndGet());
+					if (!measuring.get()) {
+						continue;
+					}
+					if (!accepted) {
+						failed.increment();
+						continue;
+					}
+					ok.increment();
+					if (latencyCounts[client] == latencies[client].length) {
+						latencies[client] = Arrays.copyOf(latencies[client], latencyCounts[client] * 2);
+					}
+					latencies[client][latencyCounts[client]++] = System.nanoTime() - begin;
+				}
+			});
+		}
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+		measuring.set(true);
+		long begin = System.nanoTime();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(SECONDS));
+		measuring.set(false);
+		double elapsed = (System.nanoTime() - begin) / 1e9;
+		long accepted = ok.sum();
+		long rejected = failed.sum();
+		stop.set(true);
+		clients.shutdown();
+		clients.awaitTermination(30, TimeUnit.SECONDS);
+		receiver.shutdown();
+
+		long[] all = new long[0];
+		for (int c = 0; c < CLIENTS; c++) {
+			int from = all.length;
+			all = Arrays.copyOf(all, from + latencyCounts[c]);
+			System.arraycopy(latencies[c], 0, all, from, latencyCounts[c]);
+		}
+		Arrays.sort(all);
+		System.out.printf("%-8s %-8s %,9.0f votes/s  p50 %6.1fms  p99 %7.1fms  failed %,d%n", transport, execution,
+				accepted / elapsed, percentile(all, 0.50), percentile(all, 0.99), rejected);
+	}
+
+	private static boolean vote(int port, KeyPair keyPair, long sequence) {
+		try (Socket socket = new Socket("127.0.0.1", port)) {
+			socket.setSoTimeout(10_000);
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			if (in.readLine() == null) {
+				return false;
+			}
+			Thread.sleep(THINK_MS);
+			String vote = "VOTE\nbench\nplayer" + sequence + "\n127.0.0.1\n" + sequence + "\n";
+			socket.getOutputStream().write(RSA.encrypt(vote.getBytes(StandardCharsets.UTF_8), keyPair.getPublic()));
+			socket.getOutputStream().flush();
+			String response = in.readLine();
+			return response != null && response.contains("ok");
+		} catch (Exception ex) {
+			return false;
+		}
+	}
+
+	private static double percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))] / 1e6;
+	}
+
+	private static final class BenchReceiver extends VoteReceiver {
+		private final KeyPair keyPair;
+
+		BenchReceiver(int port, ReceiverConfig config, KeyPair keyPair) throws Exception {
+			super("127.0.0.1", port, config);
+			this.keyPair = keyPair;
+		}
+
+		@Override
+		public boolean isUseTokens() {
+			return false;
+		}
+
+		@Override
+		public ThrottleConfig getThrottleConfig() {
+			return ThrottleConfig.builder().enabled(false).build();
+		}
+
+		@Override
+		public Path getDataDirectory() {
+			return null;
+		}
+
+		@Override
+		public void logWarning(String warn) {
+		}
+
+		@Override
+		public void logSevere(String msg) {
+			System.err.println(msg);
+		}
+
+		@Override
+		public void log(String msg) {
+		}
+
+		@Override
+		public void debug(String msg) {
+		}
+
+		@Override
+		public void debug(Exception e) {
+		}
+
+		@Override
+		public String getVersion() {
+			return "benchmark";
+		}
+
+		@Override
+		public Set<String> getServers() {
+			return Collections.emptySet();
+		}
+
+		@Override
+		public KeyPair getKeyPair() {
+			return keyPair;
+		}
+
+		@Override
+		public Map<String, Key> getTokens() {
+			return Collections.emptyMap();
+		}
+
+		@Override
+		public ForwardServer getServerData(String s) {
+			return null;
+		}
+
+		@Override
+		public void callEvent(Vote e) {
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of the throttle counters when several connection threads
+ * record failures at once: every thread failing the same address (one
+ * scanner seen on many connections), every thread on its own address, and
+ * the {@link VoteThrottleService#isBlocked} check made for each accepted
+ * connection. Thread counts come from {@code -Dbench.threads}, comma
+ * separated.
+ */
+public final class ThrottleContentionBenchmark {
+
+	private ThrottleContentionBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] threadCounts = System.getProperty("bench.threads", "1,4,16").split(",");
+		for (String count : threadCounts) {
+			int threads = Integer.parseInt(count.trim());
+
+			VoteThrottleService hot = new VoteThrottleService(ThrottleConfig.builder().build());
+			Bench.run("fail, one address", threads, () -> {
+				hot.fail("198.51.100.7", ThrottleFailure.INVALID, false, true);
+				return hot;
+			});
+
+			VoteThrottleService spread = new VoteThrottleService(ThrottleConfig.builder().build());
+			AtomicInteger nextThread = new AtomicInteger();
+			ThreadLocal<String> addresses = ThreadLocal
+					.withInitial(() -> "198.51." + (100 + nextThread.getAndIncrement()) + ".7");
+			Bench.run("fail, address per thread", threads, () -> {
+				spread.fail(addresses.get(), ThrottleFailure.INVALID, false, true);
+				return spread;
+			});
+
+			Bench.run("isBlocked, one address", threads, () -> hot.isBlocked("198.51.100.7") ? hot : null);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.vexsoftware.votifier.common.crypto.TokenUtil;
+
+/**
+ * Decoding one V2 vote envelope and checking its HMAC: the single-pass
+ * {@link V2EnvelopeScanner} against the two Gson trees the receiver used to
+ * build for the same frame.
+ */
+public final class V2DecodeBenchmark {
+
+	private static final Gson GSON = new Gson();
+	private static final String CHALLENGE = "3n6vq2m0f1l4b8a9k7c5d2e1";
+
+	private V2DecodeBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		JsonObject vote = new JsonObject();
+		vote.addProperty("serviceName", "minecraft-server-list.example");
+		vote.addProperty("username", "Notch_1234");
+		vote.addProperty("address", "203.0.113.54");
+		vote.addProperty("timestamp", "1760683525123");
+		vote.addProperty("challenge", CHALLENGE);
+		String payload = vote.toString();
+
+		Mac signer = newMac();
+		JsonObject envelope = new JsonObject();
+		envelope.addProperty("payload", payload);
+		envelope.addProperty("signature", Base64.getEncoder()
+				.encodeToString(signer.doFinal(payload.getBytes(StandardCharsets.UTF_8))));
+		byte[] frame = envelope.toString().getBytes(StandardCharsets.UTF_8);
+
+		ThreadLocal<Mac> macs = ThreadLocal.withInitial(V2DecodeBenchmark::newMac);
+		ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[VoteParser.MAX_FRAME_SIZE]);
+
+		System.out.println(frame.length + " byte envelope");
+		Bench.Operation scanner = () -> scan(frame, scratch.get(), macs.get());
+		Bench.Operation gson = () -> gson(frame, macs.get());
+		Bench.run("V2EnvelopeScanner", 1, scanner);
+		Bench.run("Gson envelope + payload trees", 1, gson);
+		System.out.printf("allocated: scanner %,.0f B/op, Gson %,.0f B/op%n", Bench.allocatedPerOp(scanner),
+				Bench.allocatedPerOp(gson));
+	}
+
+	private static VoteRequest scan(byte[] frame, byte[] scratch, Mac mac) {
+		V2EnvelopeScanner scanner = new V2EnvelopeScanner(scratch);
+		if (!scanner.scan(frame, 0, frame.length)) {
+			throw new IllegalStateException("scanner rejected the benchmark envelope");
+		}
+		String serviceName = scanner.value(V2EnvelopeScanner.SERVICE_NAME);
+		mac.update(scanner.getPayload(), 0, scanner.getPayloadLength());
+		if (!MessageDigest.isEqual(scanner.getSignature(), mac.doFinal())
+				|| !scanner.valueEquals(V2EnvelopeScanner.CHALLENGE, CHALLENGE)) {
+			throw new IllegalStateException("benchmark envelope failed verification");
+		}
+		return new VoteRequest(serviceName, scanner.value(V2EnvelopeScanner.USERNAME),
+				scanner.value(V2EnvelopeScanner.ADDRESS), scanner.value(V2EnvelopeScanner.TIMESTAMP));
+	}
+
+	private static VoteRequest gson(byte[] frame, Mac mac) {
+		String raw = new String(frame, 0, frame.length, StandardCharsets.UTF_8).trim();
+		String json = raw.substring(raw.indexOf('{'), raw.lastIndexOf('}') + 1).trim();
+		JsonObject envelope = GSON.fromJson(json, JsonObject.class);
+		String payload = envelope.get("payload").getAsString();
+		byte[] signature = Base64.getDecoder().decode(envelope.get("signature").getAsString());
+		JsonObject vote = GSON.fromJson(payload, JsonObject.class);
+		String serviceName = vote.get("serviceName").getAsString();
+		String username = vote.get("username").getAsString();
+		String address = vote.get("address").getAsString();
+		String timestamp = vote.get("timestamp").getAsString();
+		String challenge = vote.get("challenge").getAsString();
+		byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+		mac.update(payloadBytes, 0, payloadBytes.length);
+		if (!MessageDigest.isEqual(signature, mac.doFinal()) || !challenge.equals(CHALLENGE)) {
+			throw new IllegalStateException("benchmark envelope failed verification");
+		}
+		return new VoteRequest(serviceName, username, address, timestamp);
+	}
+
+	private static Mac newMac() {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(TokenUtil.createKeyFrom("benchmark-token"));
+			return mac;
+		} catch (Exception ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+}
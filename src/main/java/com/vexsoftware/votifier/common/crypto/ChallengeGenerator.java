@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Source of V2 handshake challenges.
+ *
+ * Challenges are 26 base-32 characters (130 random bits, the same strength as
+ * {@link TokenUtil#newToken()}). Random bytes are drawn in batches and encoded
+ * ahead of time, and generators are striped by thread id so concurrent accepts
+ * do not all queue on one {@link SecureRandom}.
+ */
+public final class ChallengeGenerator {
+
+	private static final char[] ALPHABET = "0123456789abcdefghijklmnopqrstuv".toCharArray();
+	private static final int LENGTH = 26;
+	private static final int BATCH = 64;
+
+	private static final Stripe[] STRIPES = newStripes();
+
+	private ChallengeGenerator() {
+	}
+
+	/**
+	 * @return a fresh challenge string
+	 */
+	public static String next() {
+		Stripe stripe = STRIPES[(int) Thread.currentThread().threadId() & (STRIPES.length - 1)];
+		synchronized (stripe) {
+			return stripe.next();
+		}
+	}
+
+	private static Stripe[] newStripes() {
+		int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+		Stripe[] stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Stripe();
+		}
+		return stripes;
+	}
+
+	private static final class Stripe {
+		private final SecureRandom random = newRandom();
+		private final byte[] bytes = new byte[LENGTH * BATCH];
+		private final char[] chars = new char[LENGTH * BATCH];
+		private int next = BATCH;
+
+		private String next() {
+			if (next == BATCH) {
+				random.nextBytes(bytes);
+				for (int i = 0; i < bytes.length; i++) {
+					// 256 is a multiple of 32, so masking keeps the digits uniform
+					chars[i] = ALPHABET[bytes[i] & 31];
+				}
+				next = 0;
+			}
+			return new String(chars, LENGTH * next++, LENGTH);
+		}
+
+		private static SecureRandom newRandom() {
+			try {
+				return SecureRandom.getInstance("DRBG");
+			} catch (NoSuchAlgorithmException ex) {
+				return new SecureRandom();
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import javax.crypto.Cipher;
+
+/**
+ * Reusable RSA ciphers initialised for a single key.
+ *
+ * {@link RSA} looks up a provider and initialises a new cipher for every
+ * block; this pool keeps up to {@code maxIdle} ready-to-use ciphers so each
+ * vote only pays for the RSA operation itself. A pool is bound to one key;
+ * replace the pool to rotate keys.
+ */
+public class CipherPool {
+
+	private final int mode;
+	private final Key key;
+	private final ArrayBlockingQueue<Cipher> idle;
+
+	/**
+	 * @param mode    {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+	 * @param key     the key every cipher is initialised with
+	 * @param maxIdle maximum number of idle ciphers kept
+	 */
+	public CipherPool(int mode, Key key, int maxIdle) {
+		this.mode = mode;
+		this.key = key;
+		this.idle = new ArrayBlockingQueue<Cipher>(Math.max(1, maxIdle));
+	}
+
+	public Key getKey() {
+		return key;
+	}
+
+	/**
+	 * Encrypts or decrypts one block.
+	 *
+	 * @param data   the input buffer
+	 * @param offset start of the block in {@code data}
+	 * @param length length of the block
+	 * @return the output block
+	 * @throws GeneralSecurityException if the operation fails, e.g.
+	 *                                  {@link javax.crypto.BadPaddingException}
+	 *                                  for a block encrypted with another key
+	 */
+	public byte[] doFinal(byte[] data, int offset, int length) throws GeneralSecurityException {
+		Cipher cipher = idle.poll();
+		if (cipher == null) {
+			cipher = Cipher.getInstance("RSA");
+			cipher.init(mode, key);
+		}
+
+		// A cipher whose doFinal threw is not returned; its state is unspecified.
+		byte[] result = cipher.doFinal(data, offset, length);
+		idle.offer(cipher);
+		return result;
+	}
+}
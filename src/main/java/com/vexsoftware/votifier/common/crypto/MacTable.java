@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+
+/**
+ * HmacSHA256 engines compiled from a token map.
+ *
+ * Each token gets one initialised prototype when the table is built; threads
+ * work on their own clones of it, so verifying or signing a vote involves no
+ * provider lookup or key copy. Build a new table when the tokens change.
+ */
+public class MacTable {
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private final Map<String, Key> tokens;
+	private final Map<String, Mac> prototypes;
+	private final ThreadLocal<Map<String, Mac>> local = ThreadLocal.withInitial(HashMap::new);
+
+	/**
+	 * @param tokens name to key map; entries with a null key are skipped
+	 * @throws GeneralSecurityException if HmacSHA256 is unavailable or a key is
+	 *                                  unusable
+	 */
+	public MacTable(Map<String, Key> tokens) throws GeneralSecurityException {
+		this.tokens = tokens;
+		Map<String, Mac> prototypes = new HashMap<String, Mac>();
+		for (Map.Entry<String, Key> entry : tokens.entrySet()) {
+			if (entry.getValue() != null) {
+				Mac mac = Mac.getInstance(ALGORITHM);
+				mac.init(entry.getValue());
+				prototypes.put(entry.getKey(), mac);
+			}
+		}
+		this.prototypes = Collections.unmodifiableMap(prototypes);
+	}
+
+	/**
+	 * @return the token map this table was built from
+	 */
+	public Map<String, Key> getTokens() {
+		return tokens;
+	}
+
+	/**
+	 * Returns this thread's Mac for a token, ready for {@code update}/{@code doFinal}.
+	 * {@code doFinal} leaves it ready for the next use.
+	 *
+	 * @param name token name
+	 * @return the Mac, or null if there is no such token
+	 */
+	public Mac get(String name) throws GeneralSecurityException {
+		Map<String, Mac> macs = local.get();
+		Mac mac = macs.get(name);
+		if (mac == null) {
+			Mac prototype = prototypes.get(name);
+			if (prototype == null) {
+				return null;
+			}
+			mac = copy(prototype, tokens.get(name));
+			macs.put(name, mac);
+		}
+		return mac;
+	}
+
+	private static Mac copy(Mac prototype, Key key) throws GeneralSecurityException {
+		try {
+			synchronized (prototype) {
+				return (Mac) prototype.clone();
+			}
+		} catch (CloneNotSupportedException ex) {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			return mac;
+		}
+	}
+}
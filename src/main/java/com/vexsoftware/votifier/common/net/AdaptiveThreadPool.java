@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded worker pool that grows between a minimum and maximum thread count.
+ *
+ * Tasks wait in a fixed-size queue; once it is full further submissions are
+ * rejected and counted instead of piling up on the heap. The pool adds a
+ * thread while tasks wait longer in the queue than the work itself takes
+ * (RSA decrypt time when reported through {@link #recordWorkTime(long)},
+ * otherwise task run time) and sheds threads again once the queue stays empty.
+ * Sizing is checked whenever a task finishes or is rejected, and by
+ * {@link #tick()}, which the owner calls every {@link #TICK_INTERVAL_MS} so an
+ * idle pool also shrinks back to its minimum.
+ */
+public class AdaptiveThreadPool extends ThreadPoolExecutor {
+
+	public static final long TICK_INTERVAL_MS = 250L;
+
+	private static final long RESIZE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+	private static final long MIN_WAIT_TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+	private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final class TimedTask implements Runnable {
+		private final Runnable task;
+		private final long queuedAt = System.nanoTime();
+
+		private TimedTask(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			queueWaitNanos = ewma(queueWaitNanos, start - queuedAt);
+			try {
+				task.run();
+			} finally {
+				taskTimeNanos = ewma(taskTimeNanos, System.nanoTime() - start);
+				completed.increment();
+				maybeResize();
+			}
+		}
+	}
+
+	private final String name;
+	private volatile int minThreads;
+	private volatile int maxThreads;
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+
+	private volatile long queueWaitNanos;
+	private volatile long taskTimeNanos;
+	private volatile long workTimeNanos;
+	private volatile long lastResizeNanos = System.nanoTime();
+
+	public AdaptiveThreadPool(final String name, int minThreads, int maxThreads, int queueCapacity) {
+		super(Math.max(1, minThreads), Math.max(Math.max(1, minThreads), maxThreads), 30L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)), new ThreadFactory() {
+					private final AtomicInteger id = new AtomicInteger(1);
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, name + "-" + id.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.AbortPolicy());
+		this.name = name;
+		this.minThreads = Math.max(1, minThreads);
+		this.maxThreads = Math.max(this.minThreads, maxThreads);
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		try {
+			super.execute(new TimedTask(command));
+		} catch (RejectedExecutionException ex) {
+			rejected.increment();
+			maybeResize();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Changes the thread bounds of a running pool. The current size is clamped
+	 * into the new range and adaptive sizing continues from there.
+	 *
+	 * @param min minimum thread count
+	 * @param max maximum thread count
+	 */
+	public synchronized void setThreadBounds(int min, int max) {
+		min = Math.max(1, min);
+		max = Math.max(min, max);
+		if (max >= getMaximumPoolSize()) {
+			setMaximumPoolSize(max);
+			setCorePoolSize(Math.max(min, Math.min(max, getCorePoolSize())));
+		} else {
+			setCorePoolSize(Math.max(min, Math.min(max, getCorePoolSize())));
+			setMaximumPoolSize(max);
+		}
+		this.minThreads = min;
+		this.maxThreads = max;
+	}
+
+	/**
+	 * Reports time spent in CPU-bound work (RSA decrypt) so sizing can react
+	 * to it rather than to total task time, which includes socket waits.
+	 *
+	 * @param nanos duration of the work
+	 */
+	public void recordWorkTime(long nanos) {
+		workTimeNanos = ewma(workTimeNanos, nanos);
+	}
+
+	/**
+	 * Re-evaluates the pool size when no task has finished recently. While
+	 * threads sit idle with nothing queued, the queue-wait average halves on
+	 * every tick, so a pool grown for a burst steps back down to its minimum
+	 * within seconds; surplus threads then exit after the keep-alive.
+	 */
+	public void tick() {
+		if (getQueue().isEmpty() && getActiveCount() < getCorePoolSize()) {
+			queueWaitNanos >>= 1;
+		}
+		maybeResize();
+	}
+
+	private void maybeResize() {
+		long now = System.nanoTime();
+		long last = lastResizeNanos;
+		if (now - last < RESIZE_INTERVAL_NANOS) {
+			return;
+		}
+		synchronized (this) {
+			if (lastResizeNanos != last) {
+				return;
+			}
+			lastResizeNanos = now;
+
+			long work = workTimeNanos > 0 ? workTimeNanos : taskTimeNanos;
+			long target = Math.max(MIN_WAIT_TARGET_NANOS, work);
+			int core = getCorePoolSize();
+
+			if (queueWaitNanos > target && !getQueue().isEmpty() && core < maxThreads) {
+				setCorePoolSize(core + 1);
+			} else if (queueWaitNanos < IDLE_WAIT_NANOS && getQueue().isEmpty() && core > minThreads) {
+				setCorePoolSize(core - 1);
+			}
+		}
+	}
+
+	private static long ewma(long current, long sample) {
+		return current == 0 ? sample : current + ((sample - current) >> 3);
+	}
+
+	public String getName() { return name; }
+	public int getQueueDepth() { return getQueue().size(); }
+	public int getQueueCapacity() { return getQueue().size() + getQueue().remainingCapacity(); }
+	public long getRejectedCount() { return rejected.sum(); }
+	public long getCompletedCount() { return completed.sum(); }
+	public double getAverageQueueWaitMs() { return queueWaitNanos / 1_000_000D; }
+	public double getAverageTaskMs() { return taskTimeNanos / 1_000_000D; }
+	public double getAverageWorkMs() { return workTimeNanos / 1_000_000D; }
+	public int getMinThreads() { return minThreads; }
+	public int getMaxThreads() { return maxThreads; }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accept-stage admission checks, run on the acceptor thread before any
+ * challenge is generated or handshake written. Throttled or banned peers,
+ * unknown peers while the receiver is overloaded, connections over the global
+ * accept rate and peers over their concurrent connection cap are closed
+ * straight away without costing a worker.
+ */
+public class AdmissionController {
+
+	/**
+	 * Connections open from one address. Only read or written under the
+	 * address's {@link IpStateMap} stripe lock.
+	 */
+	private static final class OpenCount {
+		private int count;
+	}
+
+	private final VoteReceiver receiver;
+	private final VoteThrottleService throttleService;
+	/** Closed addresses stay until the next sweep; open ones never expire. */
+	private final IpStateMap<OpenCount> openConnections;
+	private final AtomicInteger openPeers = new AtomicInteger();
+	private final AtomicLong rateWindow = new AtomicLong();
+	private final AtomicInteger rateCount = new AtomicInteger();
+
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder rejectedThrottled = new LongAdder();
+	private final LongAdder rejectedDenied = new LongAdder();
+	private final LongAdder rejectedRate = new LongAdder();
+	private final LongAdder rejectedPerIp = new LongAdder();
+
+	public AdmissionController(VoteReceiver receiver, VoteThrottleService throttleService) {
+		this.receiver = receiver;
+		this.throttleService = throttleService;
+		ThrottleConfig config = throttleService.getConfig();
+		this.openConnections = new IpStateMap<OpenCount>(
+				config == null ? ThrottleConfig.DEFAULT_MAX_TRACKED : config.maxTracked, 16,
+				open -> open.count > 0 ? Long.MAX_VALUE : Long.MIN_VALUE);
+	}
+
+	/**
+	 * Decides whether a freshly accepted connection may proceed. Every admitted
+	 * connection must later be passed to {@link #release(String)}.
+	 *
+	 * @param remoteIp remote IP address
+	 * @return true if the connection was admitted
+	 */
+	public boolean admit(String remoteIp) {
+		if (isBlocked(remoteIp) || isShed(remoteIp)) {
+			return false;
+		}
+
+		ReceiverConfig config = receiver.getReceiverConfig();
+		if (config.maxAcceptsPerSecond > 0 && !tryAcquireRate(config.maxAcceptsPerSecond)) {
+			rejectedRate.increment();
+			receiver.getVoteLog().warn(LogTopic.ACCEPT_RATE, () -> "Accept rate above "
+					+ config.maxAcceptsPerSecond + "/s, closing connection from " + remoteIp);
+			return false;
+		}
+
+		int limit = config.maxConnectionsPerIp > 0 && !throttleService.isTunnelMode(remoteIp)
+				&& !throttleService.isAllowed(remoteIp) ? config.maxConnectionsPerIp : Integer.MAX_VALUE;
+		boolean opened = openConnections.update(remoteIp, OpenCount::new, open -> {
+			if (open.count >= limit) {
+				return 0;
+			}
+			if (open.count++ == 0) {
+				openPeers.incrementAndGet();
+			}
+			return 1;
+		}, 0) == 1;
+		if (!opened) {
+			rejectedPerIp.increment();
+			receiver.getVoteLog().warn(LogTopic.PER_IP, remoteIp, () -> "Too many concurrent connections from "
+					+ remoteIp + " (limit " + config.maxConnectionsPerIp + ")");
+			return false;
+		}
+
+		admitted.increment();
+		return true;
+	}
+
+	/**
+	 * Re-runs the throttle/ban check for the real client address carried in a
+	 * PROXY protocol header. The accept-time check only saw the tunnel address.
+	 *
+	 * @param clientIp client IP address from the PROXY header
+	 * @return true if the client may proceed
+	 */
+	public boolean admitClient(String clientIp) {
+		return !isBlocked(clientIp) && !isShed(clientIp);
+	}
+
+	public void release(String remoteIp) {
+		openConnections.update(remoteIp, null, open -> {
+			if (open.count > 0 && --open.count == 0) {
+				openPeers.decrementAndGet();
+			}
+			return open.count;
+		}, 0);
+	}
+
+	private boolean isBlocked(String remoteIp) {
+		if (throttleService.isDenied(remoteIp)) {
+			rejectedDenied.increment();
+			receiver.getVoteLog().warn(LogTopic.DENY, remoteIp, () -> "Closed connection from denied address "
+					+ remoteIp);
+			return true;
+		}
+		if (!throttleService.isBlocked(remoteIp)) {
+			return false;
+		}
+
+		rejectedThrottled.increment();
+		long retry = throttleService.retryAfterMs(remoteIp);
+		receiver.getVoteLog().warn(LogTopic.THROTTLE, remoteIp, () -> "Votifier throttling " + remoteIp
+				+ " (tunnel=" + throttleService.isTunnelMode(remoteIp) + "), retry in "
+				+ Math.max(0, retry / 1000) + "s");
+		return true;
+	}
+
+	private boolean isShed(String remoteIp) {
+		OverloadController overload = receiver.getOverloadController();
+		if (overload == null || !overload.shouldShed(remoteIp, throttleService)) {
+			return false;
+		}
+		receiver.getVoteLog().warn(LogTopic.SHED, () -> "Overloaded, closed connection from unknown address "
+				+ remoteIp);
+		return true;
+	}
+
+	private boolean tryAcquireRate(int perSecond) {
+		long second = System.currentTimeMillis() / 1000L;
+		long window = rateWindow.get();
+		if (window != second && rateWindow.compareAndSet(window, second)) {
+			rateCount.set(0);
+		}
+		return rateCount.incrementAndGet() <= perSecond;
+	}
+
+	public long getAdmittedCount() { return admitted.sum(); }
+	public long getRejectedThrottledCount() { return rejectedThrottled.sum(); }
+	public long getRejectedDeniedCount() { return rejectedDenied.sum(); }
+	public long getRejectedRateCount() { return rejectedRate.sum(); }
+	public long getRejectedPerIpCount() { return rejectedPerIp.sum(); }
+	public int getTrackedAddressCount() { return openPeers.get(); }
+}
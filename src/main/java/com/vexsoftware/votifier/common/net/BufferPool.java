@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size byte buffers shared by the vote transports, so reading a frame
+ * does not allocate a fresh buffer per connection.
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final ArrayBlockingQueue<byte[]> pool;
+	private final LongAdder allocated = new LongAdder();
+
+	/**
+	 * @param bufferSize size of every buffer handed out
+	 * @param maxPooled  maximum number of idle buffers retained
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.pool = new ArrayBlockingQueue<byte[]>(Math.max(1, maxPooled));
+	}
+
+	public byte[] acquire() {
+		byte[] buffer = pool.poll();
+		if (buffer == null) {
+			allocated.increment();
+			buffer = new byte[bufferSize];
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not touch it afterwards.
+	 */
+	public void release(byte[] buffer) {
+		if (buffer != null && buffer.length == bufferSize) {
+			pool.offer(buffer);
+		}
+	}
+
+	public int getBufferSize() { return bufferSize; }
+	public int getPooledCount() { return pool.size(); }
+	public long getAllocatedCount() { return allocated.sum(); }
+}
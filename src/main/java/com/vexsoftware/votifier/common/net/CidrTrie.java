@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Set of IP networks held in a compressed binary prefix trie.
+ *
+ * Entries are addresses or CIDR blocks ({@code 10.0.0.0/8},
+ * {@code 2001:db8::/32}); a bare address is a /32 or /128. Both families share
+ * the {@link IpAddresses} key space. Each node stores a whole run of prefix
+ * bits, so a lookup visits at most one node per branching bit and costs
+ * O(prefix bits) regardless of how many networks are listed. The trie is
+ * built once and read-only afterwards.
+ */
+public class CidrTrie {
+
+	private static final class Node {
+		private final long hi;
+		private final long lo;
+		private final int length;
+		private boolean terminal;
+		private Node zero;
+		private Node one;
+
+		private Node(long hi, long lo, int length, boolean terminal) {
+			this.hi = IpAddresses.maskHigh(hi, length);
+			this.lo = IpAddresses.maskLow(lo, length);
+			this.length = length;
+			this.terminal = terminal;
+		}
+	}
+
+	private static final CidrTrie EMPTY = new CidrTrie(Collections.<String>emptySet());
+
+	private Node root;
+	private int size;
+	private final List<String> invalid = new ArrayList<String>();
+
+	/**
+	 * @param entries addresses or CIDR blocks; unparseable ones are skipped
+	 *                and reported by {@link #getInvalidEntries()}
+	 */
+	public CidrTrie(Collection<String> entries) {
+		if (entries == null) {
+			return;
+		}
+		for (String entry : entries) {
+			if (entry != null && !entry.trim().isEmpty() && !add(entry.trim())) {
+				invalid.add(entry);
+			}
+		}
+	}
+
+	public static CidrTrie empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * @return true if {@code ip} falls inside any listed network
+	 */
+	public boolean contains(String ip) {
+		return root != null && contains(IpAddresses.high(ip), IpAddresses.low(ip));
+	}
+
+	boolean contains(long hi, long lo) {
+		Node node = root;
+		while (node != null) {
+			if (IpAddresses.maskHigh(hi, node.length) != node.hi || IpAddresses.maskLow(lo, node.length) != node.lo) {
+				return false;
+			}
+			if (node.terminal) {
+				return true;
+			}
+			if (node.length == 128) {
+				return false;
+			}
+			node = bit(hi, lo, node.length) == 0 ? node.zero : node.one;
+		}
+		return false;
+	}
+
+	private boolean add(String entry) {
+		int slash = entry.indexOf('/');
+		String address = slash < 0 ? entry : entry.substring(0, slash);
+		if (!IpAddresses.isLiteral(address)) {
+			return false;
+		}
+		boolean v4 = IpAddresses.parseV4(address) >= 0;
+		long hi = IpAddresses.high(address);
+		long lo = IpAddresses.low(address);
+
+		int max = v4 ? 32 : 128;
+		int length = max;
+		if (slash >= 0) {
+			try {
+				length = Integer.parseInt(entry.substring(slash + 1).trim());
+			} catch (NumberFormatException ex) {
+				return false;
+			}
+			if (length < 0 || length > max) {
+				return false;
+			}
+		}
+		insert(hi, lo, v4 ? 96 + length : length);
+		return true;
+	}
+
+	private void insert(long hi, long lo, int length) {
+		size++;
+		if (root == null) {
+			root = new Node(hi, lo, length, true);
+			return;
+		}
+
+		Node parent = null;
+		Node node = root;
+		while (true) {
+			int common = commonPrefix(node.hi, node.lo, hi, lo, Math.min(node.length, length));
+			if (common < node.length) {
+				Node branch;
+				if (common == length) {
+					branch = new Node(hi, lo, length, true);
+					attach(branch, node);
+				} else {
+					branch = new Node(hi, lo, common, false);
+					attach(branch, node);
+					attach(branch, new Node(hi, lo, length, true));
+				}
+				replace(parent, node, branch);
+				return;
+			}
+			if (node.length == length) {
+				node.terminal = true;
+				return;
+			}
+			Node child = bit(hi, lo, node.length) == 0 ? node.zero : node.one;
+			if (child == null) {
+				attach(node, new Node(hi, lo, length, true));
+				return;
+			}
+			parent = node;
+			node = child;
+		}
+	}
+
+	private static void attach(Node parent, Node child) {
+		if (bit(child.hi, child.lo, parent.length) == 0) {
+			parent.zero = child;
+		} else {
+			parent.one = child;
+		}
+	}
+
+	private void replace(Node parent, Node old, Node replacement) {
+		if (parent == null) {
+			root = replacement;
+		} else if (parent.zero == old) {
+			parent.zero = replacement;
+		} else {
+			parent.one = replacement;
+		}
+	}
+
+	private static int commonPrefix(long aHi, long aLo, long bHi, long bLo, int max) {
+		long diff = aHi ^ bHi;
+		if (diff != 0) {
+			return Math.min(max, Long.numberOfLeadingZeros(diff));
+		}
+		diff = aLo ^ bLo;
+		if (diff != 0) {
+			return Math.min(max, 64 + Long.numberOfLeadingZeros(diff));
+		}
+		return max;
+	}
+
+	private static int bit(long hi, long lo, int index) {
+		return (int) (index < 64 ? hi >>> (63 - index) : lo >>> (127 - index)) & 1;
+	}
+
+	public boolean isEmpty() { return root == null; }
+	public int size() { return size; }
+	public List<String> getInvalidEntries() { return invalid; }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel enforcing total per-connection deadlines.
+ *
+ * Every open connection holds one {@link Timeout}. Scheduling and cancelling
+ * are O(1) and lock-free; a single timer thread advances the wheel once per
+ * tick and runs the expiry task of each deadline that has passed, so the cost
+ * of tracking thousands of idle or trickling connections does not grow with
+ * the number of reads they perform. Housekeeping timers share the thread
+ * through {@link #scheduleTimer} and are left out of the expiry count.
+ */
+public final class DeadlineWheel {
+
+	private static final int WHEEL_SIZE = 512;
+	private static final int MASK = WHEEL_SIZE - 1;
+
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	public static final class Timeout {
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+				.newUpdater(Timeout.class, "state");
+
+		private final long deadlineNanos;
+		private final Runnable task;
+		private final boolean counted;
+		private volatile int state;
+		private long remainingRounds;
+		private Timeout next;
+
+		private Timeout(long deadlineNanos, Runnable task, boolean counted) {
+			this.deadlineNanos = deadlineNanos;
+			this.task = task;
+			this.counted = counted;
+		}
+
+		/**
+		 * Cancels the deadline.
+		 *
+		 * @return false if it already expired
+		 */
+		public boolean cancel() {
+			return STATE.compareAndSet(this, PENDING, CANCELLED) || state == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+	}
+
+	private final VoteReceiver receiver;
+	private final long tickNanos;
+	private final long startNanos = System.nanoTime();
+	private final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+	private final LongAdder expired = new LongAdder();
+	private final Thread thread;
+	private volatile boolean running = true;
+	private long tick;
+
+	public DeadlineWheel(VoteReceiver receiver, long tickMs) {
+		this.receiver = receiver;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, tickMs));
+		this.thread = new Thread(this::run, "Votifier Deadline Timer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Schedules a connection deadline: {@code task} runs on the timer thread
+	 * after {@code delayMs} unless the returned timeout is cancelled first.
+	 * The task must not block.
+	 */
+	public Timeout schedule(long delayMs, Runnable task) {
+		return add(delayMs, task, true);
+	}
+
+	/**
+	 * Schedules a housekeeping task the same way as {@link #schedule}, without
+	 * counting it in {@link #getExpiredCount()}.
+	 */
+	public Timeout scheduleTimer(long delayMs, Runnable task) {
+		return add(delayMs, task, false);
+	}
+
+	private Timeout add(long delayMs, Runnable task, boolean counted) {
+		Timeout timeout = new Timeout(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs), task, counted);
+		pending.add(timeout);
+		return timeout;
+	}
+
+	public void shutdown() {
+		running = false;
+		thread.interrupt();
+	}
+
+	/**
+	 * @return connection deadlines that expired before being cancelled
+	 */
+	public long getExpiredCount() {
+		return expired.sum();
+	}
+
+	private void run() {
+		while (running) {
+			long wakeAt = startNanos + (tick + 1) * tickNanos;
+			long sleep;
+			while ((sleep = wakeAt - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, sleep);
+				if (!running) {
+					return;
+				}
+			}
+
+			transferPending();
+			expireBucket((int) (tick & MASK));
+			tick++;
+		}
+	}
+
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.state != PENDING) {
+				continue;
+			}
+			long due = Math.max(tick, (timeout.deadlineNanos - startNanos) / tickNanos);
+			timeout.remainingRounds = (due - tick) / WHEEL_SIZE;
+			int index = (int) (due & MASK);
+			timeout.next = wheel[index];
+			wheel[index] = timeout;
+		}
+	}
+
+	private void expireBucket(int index) {
+		Timeout timeout = wheel[index];
+		Timeout kept = null;
+		wheel[index] = null;
+
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			timeout.next = null;
+
+			if (timeout.state == PENDING) {
+				if (timeout.remainingRounds > 0) {
+					timeout.remainingRounds--;
+					timeout.next = kept;
+					kept = timeout;
+				} else if (Timeout.STATE.compareAndSet(timeout, PENDING, EXPIRED)) {
+					if (timeout.counted) {
+						expired.increment();
+					}
+					try {
+						timeout.task.run();
+					} catch (Exception ex) {
+						receiver.debug(ex);
+					}
+				}
+			}
+			timeout = next;
+		}
+
+		wheel[index] = kept;
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * String-keyed state map whose entries expire and whose size is capped.
+ *
+ * Each value reports the wall-clock time after which it no longer matters.
+ * Inserts pay for upkeep: at most every 30 seconds, or
+ * immediately once the map exceeds its cap, the inserting thread drops
+ * expired entries, and if that is not enough it evicts the entries closest
+ * to expiry until the map is back under 90% of the cap.
+ */
+public class ExpiringStateMap<V> {
+
+	private static final long SWEEP_INTERVAL_MS = 30_000L;
+
+	/** Rough per-entry cost of the map node and key String, excluding key characters. */
+	private static final int ENTRY_OVERHEAD_BYTES = 80;
+
+	private final ConcurrentHashMap<String, V> map = new ConcurrentHashMap<String, V>();
+	private final ToLongFunction<V> expiresAt;
+	private final int valueBytes;
+	private volatile int maxEntries;
+
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	private volatile long lastSweepMs = System.currentTimeMillis();
+	private final LongAdder keyChars = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+
+	/**
+	 * @param maxEntries cap on the number of entries
+	 * @param valueBytes approximate heap size of one value, for estimates
+	 * @param expiresAt  time in ms after which a value can be dropped
+	 */
+	public ExpiringStateMap(int maxEntries, int valueBytes, ToLongFunction<V> expiresAt) {
+		this.maxEntries = Math.max(16, maxEntries);
+		this.valueBytes = valueBytes;
+		this.expiresAt = expiresAt;
+	}
+
+	public V get(String key) {
+		return map.get(key);
+	}
+
+	/**
+	 * Returns the value for {@code key}, creating it if absent. Creating an
+	 * entry may sweep the map.
+	 */
+	public V getOrCreate(String key, Supplier<V> factory) {
+		V value = map.get(key);
+		if (value != null) {
+			return value;
+		}
+		V created = factory.get();
+		value = map.putIfAbsent(key, created);
+		if (value != null) {
+			return value;
+		}
+		keyChars.add(key.length());
+		maybeSweep();
+		return created;
+	}
+
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = Math.max(16, maxEntries);
+	}
+
+	private void maybeSweep() {
+		long now = System.currentTimeMillis();
+		if (map.size() <= maxEntries && now - lastSweepMs < SWEEP_INTERVAL_MS) {
+			return;
+		}
+		if (!sweeping.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			lastSweepMs = now;
+			for (Map.Entry<String, V> entry : map.entrySet()) {
+				if (expiresAt.applyAsLong(entry.getValue()) <= now && remove(entry)) {
+					expired.increment();
+				}
+			}
+			if (map.size() > maxEntries) {
+				evictEarliest();
+			}
+		} finally {
+			sweeping.set(false);
+		}
+	}
+
+	private void evictEarliest() {
+		int target = maxEntries - maxEntries / 10;
+		int excess = map.size() - target;
+		if (excess <= 0) {
+			return;
+		}
+
+		long[] expiries = new long[map.size() + 64];
+		int count = 0;
+		for (V value : map.values()) {
+			if (count == expiries.length) {
+				break;
+			}
+			expiries[count++] = expiresAt.applyAsLong(value);
+		}
+		if (count == 0) {
+			return;
+		}
+		Arrays.sort(expiries, 0, count);
+		long cutoff = expiries[Math.min(count, excess) - 1];
+
+		for (Map.Entry<String, V> entry : map.entrySet()) {
+			if (map.size() <= target) {
+				break;
+			}
+			if (expiresAt.applyAsLong(entry.getValue()) <= cutoff && remove(entry)) {
+				evicted.increment();
+			}
+		}
+	}
+
+	private boolean remove(Map.Entry<String, V> entry) {
+		if (map.remove(entry.getKey(), entry.getValue())) {
+			keyChars.add(-entry.getKey().length());
+			return true;
+		}
+		return false;
+	}
+
+	public int size() { return map.size(); }
+	public int getMaxEntries() { return maxEntries; }
+	public long getExpiredCount() { return expired.sum(); }
+	public long getEvictedCount() { return evicted.sum(); }
+
+	/**
+	 * @return approximate heap used by the entries, assuming Latin-1 keys
+	 */
+	public long getEstimatedBytes() {
+		return (long) map.size() * (ENTRY_OVERHEAD_BYTES + valueBytes) + keyChars.sum();
+	}
+}
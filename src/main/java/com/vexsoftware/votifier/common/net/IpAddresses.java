@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+/**
+ * Parses IP address text into a 128-bit (hi, lo) pair without allocating.
+ * IPv4 addresses map into ::ffff:0:0/96, so one key space and one prefix
+ * length scale cover both families (an IPv4 /24 is a /120).
+ */
+final class IpAddresses {
+
+	static final long V4_MAPPED = 0xFFFFL << 32;
+	private static final long DISCARD_PREFIX = 0x0100_0000_0000_0000L;
+
+	private IpAddresses() {
+	}
+
+	/**
+	 * @return the upper 64 bits of {@code ip}
+	 */
+	static long high(String ip) {
+		return parseV4(ip) >= 0 ? 0 : v6Half(ip, true);
+	}
+
+	/**
+	 * @return the lower 64 bits of {@code ip}
+	 */
+	static long low(String ip) {
+		long v4 = parseV4(ip);
+		return v4 >= 0 ? V4_MAPPED | v4 : v6Half(ip, false);
+	}
+
+	/**
+	 * @return true if {@code ip} is an IPv4 or IPv6 literal
+	 */
+	static boolean isLiteral(String ip) {
+		if (parseV4(ip) >= 0) {
+			return true;
+		}
+		try {
+			parseV6(ip, true);
+			return true;
+		} catch (IllegalArgumentException ex) {
+			return false;
+		}
+	}
+
+	static boolean isV4(long hi, long lo) {
+		return hi == 0 && (lo >>> 32) == 0xFFFFL;
+	}
+
+	/**
+	 * @return the upper half of the first {@code length} bits
+	 */
+	static long maskHigh(long hi, int length) {
+		return length <= 0 ? 0 : length >= 64 ? hi : hi & (-1L << (64 - length));
+	}
+
+	/**
+	 * @return the lower half of the first {@code length} bits
+	 */
+	static long maskLow(long lo, int length) {
+		return length <= 64 ? 0 : length >= 128 ? lo : lo & (-1L << (128 - length));
+	}
+
+	/**
+	 * @return the address as an unsigned int, or -1 if {@code ip} is not a
+	 *         dotted-quad IPv4 literal
+	 */
+	static long parseV4(String ip) {
+		int length = ip.length();
+		if (length < 7 || length > 15) {
+			return -1;
+		}
+		long address = 0;
+		int octet = 0;
+		int digits = 0;
+		int dots = 0;
+		for (int i = 0; i < length; i++) {
+			char c = ip.charAt(i);
+			if (c >= '0' && c <= '9') {
+				octet = octet * 10 + (c - '0');
+				if (++digits > 3 || octet > 255) {
+					return -1;
+				}
+			} else if (c == '.' && digits > 0 && dots < 3) {
+				address = address << 8 | octet;
+				octet = 0;
+				digits = 0;
+				dots++;
+			} else {
+				return -1;
+			}
+		}
+		if (dots != 3 || digits == 0) {
+			return -1;
+		}
+		return address << 8 | octet;
+	}
+
+	/**
+	 * Returns the upper or lower 64 bits of an IPv6 literal. A zone suffix
+	 * ({@code %eth0}) is ignored. Anything unparseable maps into the 100::/64
+	 * discard prefix by a hash of its text.
+	 */
+	private static long v6Half(String ip, boolean upper) {
+		try {
+			return parseV6(ip, upper);
+		} catch (IllegalArgumentException ex) {
+			if (upper) {
+				return DISCARD_PREFIX;
+			}
+			long h = 1125899906842597L;
+			for (int i = 0; i < ip.length(); i++) {
+				h = 31 * h + ip.charAt(i);
+			}
+			return h;
+		}
+	}
+
+	private static long parseV6(String ip, boolean upper) {
+		int end = ip.indexOf('%');
+		if (end < 0) {
+			end = ip.length();
+		}
+		if (end == 0 || ip.indexOf(':') < 0) {
+			throw new IllegalArgumentException(ip);
+		}
+		int gap = ip.indexOf("::");
+		if (gap >= end) {
+			gap = -1;
+		}
+		if (gap < 0) {
+			return groups(ip, 0, end, 0, 8, upper);
+		}
+		int tailStart = gap + 2;
+		int head = countGroups(ip, 0, gap);
+		int tail = countGroups(ip, tailStart, end);
+		if (head + tail > 7) {
+			throw new IllegalArgumentException(ip);
+		}
+		return groups(ip, 0, gap, 0, head, upper) | groups(ip, tailStart, end, 8 - tail, tail, upper);
+	}
+
+	private static int countGroups(String ip, int from, int to) {
+		if (from >= to) {
+			return 0;
+		}
+		int groups = 1;
+		for (int i = from; i < to; i++) {
+			char c = ip.charAt(i);
+			if (c == ':') {
+				groups++;
+			} else if (c == '.') {
+				groups++;
+				break;
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Parses {@code expected} colon-separated groups from {@code [from, to)},
+	 * placed at group index {@code first}, and returns the requested half.
+	 */
+	private static long groups(String ip, int from, int to, int first, int expected, boolean upper) {
+		long half = 0;
+		int index = first;
+		int i = from;
+		while (i < to) {
+			int next = ip.indexOf(':', i);
+			if (next < 0 || next > to) {
+				next = to;
+			}
+			if (next == i) {
+				throw new IllegalArgumentException(ip);
+			}
+			int value;
+			if (next == to && ip.lastIndexOf('.', to - 1) >= i) {
+				long v4 = parseV4(ip.substring(i, to));
+				if (v4 < 0) {
+					throw new IllegalArgumentException(ip);
+				}
+				half = place(half, index++, (int) (v4 >>> 16), upper);
+				value = (int) (v4 & 0xFFFF);
+			} else {
+				if (next - i > 4) {
+					throw new IllegalArgumentException(ip);
+				}
+				value = Integer.parseInt(ip, i, next, 16);
+			}
+			half = place(half, index++, value, upper);
+			i = next + 1;
+		}
+		if (index - first != expected) {
+			throw new IllegalArgumentException(ip);
+		}
+		return half;
+	}
+
+	private static long place(long half, int index, int value, boolean upper) {
+		if (index > 7) {
+			throw new IllegalArgumentException("Too many IPv6 groups");
+		}
+		if ((index < 4) != upper) {
+			return half;
+		}
+		return half | ((long) value & 0xFFFF) << (48 - 16 * (index & 3));
+	}
+}
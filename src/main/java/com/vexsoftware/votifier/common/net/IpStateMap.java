@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Expiring, size-capped state keyed by IP address without String keys.
+ *
+ * IPv4 addresses (including IPv4-mapped IPv6) are stored as ints and IPv6
+ * addresses as two longs, in open-addressing tables spread over striped
+ * locks. Lookups parse the address text in place (see {@link IpAddresses})
+ * and read the table under an optimistic stamp, so the common path neither
+ * allocates nor blocks.
+ *
+ * Expiry and the size cap work as in {@link ExpiringStateMap}: inserts sweep
+ * expired entries every 30 seconds, or at once when over the cap, and then
+ * evict the entries closest to expiry down to 90% of the cap.
+ */
+public class IpStateMap<V> {
+
+	private static final int STRIPES = 64;
+	private static final int INITIAL_CAPACITY = 16;
+	private static final long SWEEP_INTERVAL_MS = 30_000L;
+	private static final int REF_BYTES = 4;
+
+	/**
+	 * Receives the entries of {@link IpStateMap#forEach}.
+	 */
+	interface EntryVisitor<V> {
+		void visit(long hi, long lo, V value);
+	}
+
+	private static final class Stripe {
+		private final StampedLock lock = new StampedLock();
+		private int[] v4Keys = new int[INITIAL_CAPACITY];
+		private Object[] v4Values = new Object[INITIAL_CAPACITY];
+		private int v4Size;
+		private long[] v6Keys = new long[INITIAL_CAPACITY * 2];
+		private Object[] v6Values = new Object[INITIAL_CAPACITY];
+		private int v6Size;
+	}
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	/**
+	 * Keys the slot hash, so addresses that collide (for example interface IDs
+	 * chosen inside one IPv6 /64) cannot be worked out from outside.
+	 */
+	private final long seed = new SecureRandom().nextLong();
+	private final ToLongFunction<V> expiresAt;
+	private final int valueBytes;
+	private volatile int maxEntries;
+
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	private volatile long lastSweepMs = System.currentTimeMillis();
+	private final LongAdder size = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+
+	/**
+	 * @param maxEntries cap on the number of addresses
+	 * @param valueBytes approximate heap size of one value, for estimates
+	 * @param expiresAt  time in ms after which a value can be dropped
+	 */
+	public IpStateMap(int maxEntries, int valueBytes, ToLongFunction<V> expiresAt) {
+		this.maxEntries = Math.max(16, maxEntries);
+		this.valueBytes = valueBytes;
+		this.expiresAt = expiresAt;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	public V get(String ip) {
+		return get(IpAddresses.high(ip), IpAddresses.low(ip));
+	}
+
+	/**
+	 * Looks up an address in {@link IpAddresses} form.
+	 */
+	V get(long hi, long lo) {
+		if (IpAddresses.isV4(hi, lo)) {
+			return getV4((int) lo);
+		}
+		return getV6(hi, lo);
+	}
+
+	/**
+	 * Returns the value for {@code ip}, creating it if absent. Creating an
+	 * entry may sweep the map.
+	 */
+	public V getOrCreate(String ip, Supplier<V> factory) {
+		return getOrCreate(IpAddresses.high(ip), IpAddresses.low(ip), factory);
+	}
+
+	V getOrCreate(long hi, long lo, Supplier<V> factory) {
+		V value = get(hi, lo);
+		if (value != null) {
+			return value;
+		}
+
+		V created = factory.get();
+		if (IpAddresses.isV4(hi, lo)) {
+			int key = (int) lo;
+			Stripe stripe = stripes[hash(key) >>> 26];
+			long stamp = stripe.lock.writeLock();
+			try {
+				value = findV4(stripe.v4Keys, stripe.v4Values, key);
+				if (value != null) {
+					return value;
+				}
+				insertV4(stripe, key, created);
+			} finally {
+				stripe.lock.unlockWrite(stamp);
+			}
+		} else {
+			Stripe stripe = stripes[hash(hi, lo) >>> 26];
+			long stamp = stripe.lock.writeLock();
+			try {
+				value = findV6(stripe.v6Keys, stripe.v6Values, hi, lo);
+				if (value != null) {
+					return value;
+				}
+				insertV6(stripe, hi, lo, created);
+			} finally {
+				stripe.lock.unlockWrite(stamp);
+			}
+		}
+		size.increment();
+		maybeSweep();
+		return created;
+	}
+
+	/**
+	 * Applies {@code update} to the value for {@code ip} under its stripe's
+	 * write lock, first creating the value if it is absent and
+	 * {@code factory} is not null. Sweeps take the same lock, so the value
+	 * cannot be dropped while {@code update} runs, and updates to one address
+	 * are serialised.
+	 *
+	 * @return the result of {@code update}, or {@code missing} if there was
+	 *         no value and none was created
+	 */
+	public int update(String ip, Supplier<V> factory, ToIntFunction<V> update, int missing) {
+		long hi = IpAddresses.high(ip);
+		long lo = IpAddresses.low(ip);
+		boolean v4 = IpAddresses.isV4(hi, lo);
+		Stripe stripe = stripes[(v4 ? hash((int) lo) : hash(hi, lo)) >>> 26];
+		boolean created = false;
+		int result;
+		long stamp = stripe.lock.writeLock();
+		try {
+			V value = v4 ? findV4(stripe.v4Keys, stripe.v4Values, (int) lo)
+					: findV6(stripe.v6Keys, stripe.v6Values, hi, lo);
+			if (value == null) {
+				if (factory == null) {
+					return missing;
+				}
+				value = factory.get();
+				if (v4) {
+					insertV4(stripe, (int) lo, value);
+				} else {
+					insertV6(stripe, hi, lo, value);
+				}
+				created = true;
+			}
+			result = update.applyAsInt(value);
+		} finally {
+			stripe.lock.unlockWrite(stamp);
+		}
+		if (created) {
+			size.increment();
+			maybeSweep();
+		}
+		return result;
+	}
+
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = Math.max(16, maxEntries);
+	}
+
+	private V getV4(int key) {
+		Stripe stripe = stripes[hash(key) >>> 26];
+		long stamp = stripe.lock.tryOptimisticRead();
+		if (stamp != 0) {
+			V value = findV4(stripe.v4Keys, stripe.v4Values, key);
+			if (stripe.lock.validate(stamp)) {
+				return value;
+			}
+		}
+		stamp = stripe.lock.readLock();
+		try {
+			return findV4(stripe.v4Keys, stripe.v4Values, key);
+		} finally {
+			stripe.lock.unlockRead(stamp);
+		}
+	}
+
+	private V getV6(long hi, long lo) {
+		Stripe stripe = stripes[hash(hi, lo) >>> 26];
+		long stamp = stripe.lock.tryOptimisticRead();
+		if (stamp != 0) {
+			V value = findV6(stripe.v6Keys, stripe.v6Values, hi, lo);
+			if (stripe.lock.validate(stamp)) {
+				return value;
+			}
+		}
+		stamp = stripe.lock.readLock();
+		try {
+			return findV6(stripe.v6Keys, stripe.v6Values, hi, lo);
+		} finally {
+			stripe.lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * The find methods may run against a table that is being resized, so they
+	 * bound every probe by the array lengths; the caller discards the result
+	 * if the stamp no longer validates.
+	 */
+	@SuppressWarnings("unchecked")
+	private V findV4(int[] keys, Object[] values, int key) {
+		int length = Math.min(keys.length, values.length);
+		int mask = length - 1;
+		int slot = hash(key) & mask;
+		for (int probes = 0; probes < length; probes++) {
+			Object value = values[slot];
+			if (value == null) {
+				return null;
+			}
+			if (keys[slot] == key) {
+				return (V) value;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V findV6(long[] keys, Object[] values, long hi, long lo) {
+		int length = Math.min(keys.length / 2, values.length);
+		int mask = length - 1;
+		int slot = hash(hi, lo) & mask;
+		for (int probes = 0; probes < length; probes++) {
+			Object value = values[slot];
+			if (value == null) {
+				return null;
+			}
+			if (keys[slot * 2] == hi && keys[slot * 2 + 1] == lo) {
+				return (V) value;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	private void insertV4(Stripe stripe, int key, Object value) {
+		if ((stripe.v4Size + 1) * 2 > stripe.v4Values.length) {
+			resizeV4(stripe, stripe.v4Values.length * 2);
+		}
+		int mask = stripe.v4Values.length - 1;
+		int slot = hash(key) & mask;
+		while (stripe.v4Values[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		stripe.v4Keys[slot] = key;
+		stripe.v4Values[slot] = value;
+		stripe.v4Size++;
+	}
+
+	private void insertV6(Stripe stripe, long hi, long lo, Object value) {
+		if ((stripe.v6Size + 1) * 2 > stripe.v6Values.length) {
+			resizeV6(stripe, stripe.v6Values.length * 2);
+		}
+		int mask = stripe.v6Values.length - 1;
+		int slot = hash(hi, lo) & mask;
+		while (stripe.v6Values[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		stripe.v6Keys[slot * 2] = hi;
+		stripe.v6Keys[slot * 2 + 1] = lo;
+		stripe.v6Values[slot] = value;
+		stripe.v6Size++;
+	}
+
+	private void resizeV4(Stripe stripe, int capacity) {
+		int[] keys = stripe.v4Keys;
+		Object[] values = stripe.v4Values;
+		stripe.v4Keys = new int[capacity];
+		stripe.v4Values = new Object[capacity];
+		stripe.v4Size = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				insertV4(stripe, keys[i], values[i]);
+			}
+		}
+	}
+
+	private void resizeV6(Stripe stripe, int capacity) {
+		long[] keys = stripe.v6Keys;
+		Object[] values = stripe.v6Values;
+		stripe.v6Keys = new long[capacity * 2];
+		stripe.v6Values = new Object[capacity];
+		stripe.v6Size = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				insertV6(stripe, keys[i * 2], keys[i * 2 + 1], values[i]);
+			}
+		}
+	}
+
+	private void maybeSweep() {
+		long now = System.currentTimeMillis();
+		if (size() <= maxEntries && now - lastSweepMs < SWEEP_INTERVAL_MS) {
+			return;
+		}
+		if (!sweeping.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			lastSweepMs = now;
+			expired.add(retain(now, 0));
+			int target = maxEntries - maxEntries / 10;
+			int excess = size() - target;
+			if (excess > 0) {
+				evicted.add(retain(cutoff(excess), excess));
+			}
+		} finally {
+			sweeping.set(false);
+		}
+	}
+
+	/**
+	 * Expiry time at or below which roughly {@code count} entries fall.
+	 */
+	private long cutoff(int count) {
+		long[] expiries = new long[size() + 64];
+		int n = 0;
+		for (Stripe stripe : stripes) {
+			long stamp = stripe.lock.readLock();
+			try {
+				n = collect(stripe.v4Values, expiries, n);
+				n = collect(stripe.v6Values, expiries, n);
+			} finally {
+				stripe.lock.unlockRead(stamp);
+			}
+		}
+		if (n == 0) {
+			return Long.MIN_VALUE;
+		}
+		Arrays.sort(expiries, 0, n);
+		return expiries[Math.min(n, count) - 1];
+	}
+
+	@SuppressWarnings("unchecked")
+	private int collect(Object[] values, long[] into, int n) {
+		for (Object value : values) {
+			if (value != null && n < into.length) {
+				into[n++] = expiresAt.applyAsLong((V) value);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Rebuilds every stripe without the entries expiring at or before
+	 * {@code cutoff}, removing at most {@code limit} of them (0 = no limit).
+	 *
+	 * @return the number of entries removed
+	 */
+	@SuppressWarnings("unchecked")
+	private int retain(long cutoff, int limit) {
+		int removed = 0;
+		for (Stripe stripe : stripes) {
+			long stamp = stripe.lock.writeLock();
+			try {
+				int[] v4Keys = stripe.v4Keys;
+				Object[] v4Values = stripe.v4Values;
+				long[] v6Keys = stripe.v6Keys;
+				Object[] v6Values = stripe.v6Values;
+				stripe.v4Keys = new int[v4Keys.length];
+				stripe.v4Values = new Object[v4Values.length];
+				stripe.v4Size = 0;
+				stripe.v6Keys = new long[v6Keys.length];
+				stripe.v6Values = new Object[v6Values.length];
+				stripe.v6Size = 0;
+
+				for (int i = 0; i < v4Values.length; i++) {
+					Object value = v4Values[i];
+					if (value == null) {
+						continue;
+					}
+					if ((limit == 0 || removed < limit) && expiresAt.applyAsLong((V) value) <= cutoff) {
+						removed++;
+					} else {
+						insertV4(stripe, v4Keys[i], value);
+					}
+				}
+				for (int i = 0; i < v6Values.length; i++) {
+					Object value = v6Values[i];
+					if (value == null) {
+						continue;
+					}
+					if ((limit == 0 || removed < limit) && expiresAt.applyAsLong((V) value) <= cutoff) {
+						removed++;
+					} else {
+						insertV6(stripe, v6Keys[i * 2], v6Keys[i * 2 + 1], value);
+					}
+				}
+			} finally {
+				stripe.lock.unlockWrite(stamp);
+			}
+		}
+		size.add(-removed);
+		return removed;
+	}
+
+	/**
+	 * Visits every entry in {@link IpAddresses} form, one stripe at a time
+	 * under its read lock. Entries added or removed meanwhile may be missed.
+	 */
+	@SuppressWarnings("unchecked")
+	void forEach(EntryVisitor<? super V> visitor) {
+		for (Stripe stripe : stripes) {
+			long stamp = stripe.lock.readLock();
+			try {
+				int[] v4Keys = stripe.v4Keys;
+				Object[] v4Values = stripe.v4Values;
+				for (int i = 0; i < v4Values.length; i++) {
+					if (v4Values[i] != null) {
+						visitor.visit(0L, IpAddresses.V4_MAPPED | (v4Keys[i] & 0xFFFFFFFFL), (V) v4Values[i]);
+					}
+				}
+				long[] v6Keys = stripe.v6Keys;
+				Object[] v6Values = stripe.v6Values;
+				for (int i = 0; i < v6Values.length; i++) {
+					if (v6Values[i] != null) {
+						visitor.visit(v6Keys[i * 2], v6Keys[i * 2 + 1], (V) v6Values[i]);
+					}
+				}
+			} finally {
+				stripe.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	public int size() { return (int) size.sum(); }
+	public int getMaxEntries() { return maxEntries; }
+	public long getExpiredCount() { return expired.sum(); }
+	public long getEvictedCount() { return evicted.sum(); }
+
+	/**
+	 * @return approximate heap used by the tables and values
+	 */
+	public long getEstimatedBytes() {
+		long bytes = (long) size() * valueBytes;
+		for (Stripe stripe : stripes) {
+			bytes += (long) stripe.v4Values.length * (4 + REF_BYTES) + (long) stripe.v6Values.length * (16 + REF_BYTES);
+		}
+		return bytes;
+	}
+
+	private int hash(int key) {
+		return (int) mix((key & 0xFFFFFFFFL) ^ seed);
+	}
+
+	private int hash(long hi, long lo) {
+		return (int) mix(mix(hi ^ seed) ^ lo);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.util.Locale;
+
+/**
+ * Classes of rate-limited warning logged through {@link VoteLog}. Each
+ * address gets at most one warning per topic per log window.
+ */
+public enum LogTopic {
+	/** V1 payload shorter than one RSA block. */
+	SHORT_V1,
+	/** Unparseable payload or PROXY header. */
+	INVALID,
+	/** Bad V2 signature, unknown service token or challenge mismatch. */
+	AUTH,
+	/** Replayed V1 block or V2 signature. */
+	REPLAY,
+	/** Another protocol sent to the vote port. */
+	SCAN,
+	/** Verified vote over its address or service vote rate. */
+	RATE_LIMIT,
+	/** V2 payload that is not valid JSON. */
+	MALFORMED_JSON,
+	/** V1 block that does not decrypt with our private key. */
+	BAD_PADDING,
+	/** Connection exceeded its handshake, V1 or V2 deadline. */
+	TIMEOUT,
+	/** Socket reset or protocol error. */
+	SOCKET,
+	/** Any other error while processing a vote. */
+	GENERIC,
+	/** Peer over its concurrent connection cap. */
+	PER_IP,
+	/** Connection from a DenyList address. */
+	DENY,
+	/** Connection from a throttled or banned address. */
+	THROTTLE,
+	/** Connection over the global accept rate. */
+	ACCEPT_RATE,
+	/** Connection shed while overloaded. */
+	SHED,
+	/** Connection worker queue full. */
+	CONNECTION_QUEUE,
+	/** Dispatch queue full. */
+	DISPATCH_QUEUE,
+	/** Forward queue full. */
+	FORWARD_QUEUE;
+
+	public String getLabel() {
+		return name().toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.vexsoftware.votifier.common.net.ProxyProtocolDecoder.ProxyHeader;
+import com.vexsoftware.votifier.model.Vote;
+
+/**
+ * Selector-based vote transport.
+ *
+ * A single I/O thread accepts sockets and drives the PROXY header, handshake,
+ * V1 block read and V2 frame read of every connection as a small state machine. Only a fully
+ * buffered payload is handed to the connection workers, so RSA/HMAC
+ * verification is the only work that occupies a worker thread. Each phase has
+ * a total deadline kept in the receiver's {@link DeadlineWheel}; reads do not
+ * extend it, so trickling clients are closed on time.
+ */
+public class NioVoteTransport {
+
+	private static final long SELECT_TIMEOUT_MS = 250L;
+
+	/**
+	 * Accepts taken per selector wakeup. Anything left stays in the kernel
+	 * backlog and is picked up on the next select, so a connect flood cannot
+	 * starve reads, writes and deadlines on open connections.
+	 */
+	private static final int MAX_ACCEPTS_PER_WAKEUP = 64;
+
+	private enum State {
+		PROXY, READ, VERIFY, RESPOND
+	}
+
+	private static final class Connection {
+		private final SocketChannel channel;
+		private final String peerIp;
+		private String challenge;
+		private String remoteIp;
+		private String address;
+		private boolean realIpKnown;
+		private SelectionKey key;
+		private State state = State.READ;
+		private ByteBuffer out;
+		private byte[] data;
+		private int length;
+		private DeadlineWheel.Timeout deadline;
+		private String phase;
+		/** Payload budget chosen, from the first byte received. */
+		private boolean payloadArmed;
+		/** First bytes already checked against other protocols. */
+		private boolean sniffed;
+		private boolean closed;
+
+		private Connection(SocketChannel channel, String remoteIp, String address) {
+			this.channel = channel;
+			this.peerIp = remoteIp;
+			this.remoteIp = remoteIp;
+			this.address = address;
+		}
+	}
+
+	private final VoteReceiver receiver;
+	private final VoteConnectionHandler handler;
+	private final ServerSocketChannel serverChannel;
+	private final ExecutorService workers;
+	private final AdmissionController admission;
+	private final DeadlineWheel deadlines;
+	private final BufferPool buffers;
+	private final Selector selector;
+	private final Queue<Connection> verified = new ConcurrentLinkedQueue<Connection>();
+	private final Queue<Connection> expired = new ConcurrentLinkedQueue<Connection>();
+
+	public NioVoteTransport(VoteReceiver receiver, VoteConnectionHandler handler, ServerSocketChannel serverChannel,
+			ExecutorService workers) throws IOException {
+		this.receiver = receiver;
+		this.handler = handler;
+		this.serverChannel = serverChannel;
+		this.workers = workers;
+		this.admission = receiver.getAdmissionController();
+		this.deadlines = receiver.getDeadlineWheel();
+		this.buffers = receiver.getBufferPool();
+		this.selector = Selector.open();
+	}
+
+	public void wakeup() {
+		selector.wakeup();
+	}
+
+	public void run() {
+		try {
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException ex) {
+			receiver.logSevere("Unable to register vote socket with selector: " + ex.getLocalizedMessage());
+			return;
+		}
+
+		while (receiver.isRunning()) {
+			try {
+				selector.select(SELECT_TIMEOUT_MS);
+			} catch (IOException ex) {
+				receiver.logWarning("Selector error in vote receiver: " + ex.getLocalizedMessage());
+				continue;
+			}
+
+			drainVerified();
+			drainExpired();
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				try {
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						acceptPending();
+						continue;
+					}
+
+					Connection conn = (Connection) key.attachment();
+					if (key.isWritable()) {
+						write(conn);
+					}
+					if (key.isValid() && key.isReadable()) {
+						read(conn);
+					}
+				} catch (CancelledKeyException ignored) {
+				}
+			}
+		}
+
+		receiver.logWarning("Votifier socket closed.");
+		closeAll();
+	}
+
+	private void acceptPending() {
+		for (int i = 0; i < MAX_ACCEPTS_PER_WAKEUP; i++) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException ex) {
+				if (receiver.isRunning()) {
+					receiver.logWarning("Connection error while accepting vote socket: " + ex.getLocalizedMessage());
+				}
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+
+			String remoteIp = remoteIp(channel);
+			if (!admission.admit(remoteIp)) {
+				closeQuietly(channel);
+				continue;
+			}
+
+			try {
+				open(channel, remoteIp);
+			} catch (Exception ex) {
+				admission.release(remoteIp);
+				closeQuietly(channel);
+				receiver.logWarning("Error accepting vote connection: "
+						+ (ex.getLocalizedMessage() == null ? ex.getClass().getSimpleName()
+								: ex.getLocalizedMessage()));
+			}
+		}
+	}
+
+	private static String remoteIp(SocketChannel channel) {
+		try {
+			InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+			return remote == null ? "unknown" : remote.getAddress().getHostAddress();
+		} catch (IOException ex) {
+			return "unknown";
+		}
+	}
+
+	private void open(SocketChannel channel, String remoteIp) throws IOException {
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+
+		InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+		String address = remote == null ? "/" + remoteIp : remote.toString();
+		receiver.getVoteLog().debug(() -> "Accepted connection from: " + address);
+
+		Connection conn = new Connection(channel, remoteIp, address);
+		conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+		arm(conn, "Handshake", receiver.getReceiverConfig().handshakeTimeoutMs);
+		if (handler.isProxyTrusted(remoteIp)) {
+			// Nothing can be sent before the PROXY header names the client.
+			conn.state = State.PROXY;
+			return;
+		}
+		begin(conn, false);
+	}
+
+	/**
+	 * Starts the Votifier exchange once any PROXY header has been consumed:
+	 * skips the handshake if a V1 block is already buffered, otherwise writes it.
+	 */
+	private void begin(Connection conn, boolean eof) {
+		if (eof && conn.length == 0) {
+			receiver.getVoteLog().debug(() -> "Connection closed without payload from " + conn.address);
+			close(conn);
+			return;
+		}
+		armPayload(conn);
+		if (conn.length >= VoteParser.V1_BLOCK_SIZE || eof) {
+			if (conn.length >= VoteParser.V1_BLOCK_SIZE) {
+				int available = conn.length;
+				receiver.getVoteLog().debug(() -> "Detected V1 vote payload before handshake (available bytes: " + available
+						+ "), skipping handshake.");
+			}
+			checkComplete(conn, eof);
+			return;
+		}
+
+		conn.challenge = handler.newChallenge();
+		String handshake = handler.getHandshakeMessage(conn.challenge);
+		conn.out = ByteBuffer.wrap((handshake + "\n").getBytes(StandardCharsets.UTF_8));
+		write(conn);
+		receiver.getVoteLog().debug(() -> "Sent handshake: " + handshake);
+	}
+
+	private void readProxyHeader(Connection conn, boolean eof) {
+		ProxyHeader header;
+		try {
+			header = handler.getProxyDecoder().decode(conn.data, conn.length);
+		} catch (InvalidVoteException ex) {
+			close(conn);
+			handler.handleTransportFailure(ex, conn.peerIp, false);
+			return;
+		}
+
+		if (header == null) {
+			if (eof) {
+				receiver.getVoteLog().debug(() -> "Connection closed before PROXY header from " + conn.address);
+				close(conn);
+			}
+			return;
+		}
+
+		conn.length -= header.length();
+		System.arraycopy(conn.data, header.length(), conn.data, 0, conn.length);
+		conn.state = State.READ;
+
+		if (header.sourceIp() != null) {
+			String address = handler.proxiedAddress(header);
+			receiver.getVoteLog().debug(() -> "PROXY header from " + conn.peerIp + " names client " + address);
+			conn.remoteIp = header.sourceIp();
+			conn.address = address;
+			conn.realIpKnown = true;
+			if (!admission.admitClient(conn.remoteIp)) {
+				close(conn);
+				return;
+			}
+		}
+
+		begin(conn, eof);
+	}
+
+	private void read(Connection conn) {
+		if (conn.state != State.READ && conn.state != State.PROXY) {
+			return;
+		}
+
+		boolean eof;
+		try {
+			eof = fill(conn);
+		} catch (IOException ex) {
+			close(conn);
+			handler.handleTransportFailure(ex, conn.remoteIp, conn.realIpKnown);
+			return;
+		}
+
+		if (conn.state == State.PROXY) {
+			readProxyHeader(conn, eof);
+			return;
+		}
+
+		armPayload(conn);
+
+		if (eof && conn.length == 0) {
+			receiver.getVoteLog().debug(() -> "Connection closed without payload from " + conn.address);
+			close(conn);
+			return;
+		}
+
+		checkComplete(conn, eof);
+	}
+
+	/**
+	 * Reads whatever is available without blocking. The first bytes go into a
+	 * small array that holds a whole V1 block; a pooled frame buffer is taken
+	 * only when a V2 frame or a PROXY header needs more room, so idle and
+	 * stalled connections hold no frame buffer.
+	 *
+	 * @return true if the peer closed its side of the connection
+	 */
+	private boolean fill(Connection conn) throws IOException {
+		if (conn.data == null) {
+			conn.data = new byte[VoteParser.V1_BLOCK_SIZE];
+		}
+		while (true) {
+			if (conn.length == conn.data.length) {
+				if (conn.data.length >= buffers.getBufferSize() || (conn.state != State.PROXY && !isV2(conn))) {
+					return false;
+				}
+				byte[] frame = buffers.acquire();
+				System.arraycopy(conn.data, 0, frame, 0, conn.length);
+				conn.data = frame;
+			}
+
+			int read = conn.channel.read(ByteBuffer.wrap(conn.data, conn.length, conn.data.length - conn.length));
+			if (read == -1) {
+				return true;
+			}
+			if (read == 0) {
+				return false;
+			}
+			conn.length += read;
+		}
+	}
+
+	private void checkComplete(Connection conn, boolean eof) {
+		if (conn.length < 2) {
+			if (eof) {
+				verify(conn);
+			}
+			return;
+		}
+
+		if (!isV2(conn)) {
+			if (!conn.sniffed && rejectForeignProtocol(conn)) {
+				return;
+			}
+			if (conn.length >= VoteParser.V1_BLOCK_SIZE) {
+				conn.length = VoteParser.V1_BLOCK_SIZE;
+				verify(conn);
+			} else if (eof) {
+				verify(conn);
+			}
+			return;
+		}
+
+		try {
+			int frameLength = handler.getVoteParser().completeV2Frame(conn.data, conn.length);
+			if (frameLength > 0) {
+				conn.length = frameLength;
+				verify(conn);
+			} else if (eof) {
+				throw new InvalidVoteException("Incomplete V2 frame from " + conn.address
+						+ " (connection closed after " + conn.length + " bytes)");
+			}
+		} catch (InvalidVoteException ex) {
+			close(conn);
+			handler.handleTransportFailure(ex, conn.remoteIp, conn.realIpKnown);
+		}
+	}
+
+	/**
+	 * Closes a V1 connection as soon as its first bytes show another protocol,
+	 * instead of waiting for a full block and decrypting it.
+	 *
+	 * @return true if the connection was closed
+	 */
+	private boolean rejectForeignProtocol(Connection conn) {
+		try {
+			handler.getVoteParser().checkForeignProtocol(conn.data, conn.length);
+		} catch (VoteScanException ex) {
+			close(conn);
+			handler.handleTransportFailure(ex, conn.remoteIp, conn.realIpKnown);
+			return true;
+		}
+		conn.sniffed = conn.length >= ProtocolSniffer.SNIFF_LENGTH;
+		return false;
+	}
+
+	private boolean isV2(Connection conn) {
+		try {
+			return handler.getVoteParser().detectVersion(conn.data, conn.length) == VoteProtocolVersion.V2;
+		} catch (Exception ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Replaces the connection's deadline with a new phase budget. An expired
+	 * connection is handed back to the selector thread, which owns the socket.
+	 */
+	private void arm(final Connection conn, String phase, long budgetMs) {
+		if (conn.deadline != null && !conn.deadline.cancel()) {
+			return;
+		}
+		conn.phase = phase;
+		conn.deadline = deadlines.schedule(budgetMs, () -> {
+			expired.add(conn);
+			selector.wakeup();
+		});
+	}
+
+	/**
+	 * Swaps the handshake budget for the V1 or V2 payload budget once the
+	 * first byte is buffered. A V2 frame always starts with '{' or the 's'
+	 * of its magic, so a lone first byte is enough: a V1 block that happens
+	 * to start with one of them only gets the longer V2 budget.
+	 */
+	private void armPayload(Connection conn) {
+		if (conn.payloadArmed || conn.length == 0) {
+			return;
+		}
+		conn.payloadArmed = true;
+		ReceiverConfig config = receiver.getReceiverConfig();
+		boolean v2 = conn.length >= 2 ? isV2(conn) : handler.getVoteParser().mayBeV2(conn.data[0]);
+		if (v2) {
+			arm(conn, "V2", config.v2TimeoutMs);
+		} else {
+			arm(conn, "V1", config.v1TimeoutMs);
+		}
+	}
+
+	private void verify(final Connection conn) {
+		conn.state = State.VERIFY;
+		conn.key.interestOps(0);
+		conn.deadline.cancel();
+
+		try {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					Vote vote = null;
+					try {
+						vote = handler.handle(conn.data, conn.length, conn.remoteIp, conn.address, conn.challenge,
+								conn.realIpKnown);
+						if (vote != null && !handler.isTestVote(vote)) {
+							conn.out = ByteBuffer.wrap(handler.getOkResponse().getBytes(StandardCharsets.UTF_8));
+						} else {
+							conn.out = null;
+						}
+					} finally {
+						verified.add(conn);
+						selector.wakeup();
+					}
+
+					if (vote != null) {
+						receiver.dispatch(vote);
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			close(conn);
+			receiver.rejectConnection(conn.remoteIp);
+		}
+	}
+
+	private void drainVerified() {
+		Connection conn;
+		while ((conn = verified.poll()) != null) {
+			if (conn.out == null) {
+				close(conn);
+				continue;
+			}
+			conn.state = State.RESPOND;
+			arm(conn, "Response", receiver.getReceiverConfig().handshakeTimeoutMs);
+			try {
+				write(conn);
+			} catch (CancelledKeyException ex) {
+				close(conn);
+			}
+		}
+	}
+
+	private void write(Connection conn) {
+		ByteBuffer out = conn.out;
+		if (out == null) {
+			return;
+		}
+
+		try {
+			conn.channel.write(out);
+		} catch (IOException ex) {
+			close(conn);
+			if (conn.state == State.RESPOND) {
+				receiver.getVoteLog().debug(() -> "Failed to send OK response, but will continue to process vote: "
+						+ ex.getLocalizedMessage());
+			} else {
+				handler.handleTransportFailure(ex, conn.remoteIp, conn.realIpKnown);
+			}
+			return;
+		}
+
+		if (out.hasRemaining()) {
+			conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+			return;
+		}
+
+		conn.out = null;
+		if (conn.state == State.RESPOND) {
+			receiver.getVoteLog().debug(() -> "Sent OK response: " + handler.getOkResponse());
+			close(conn);
+		} else if (conn.key.isValid()) {
+			conn.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void drainExpired() {
+		Connection conn;
+		while ((conn = expired.poll()) != null) {
+			if (conn.closed || conn.state == State.VERIFY) {
+				continue;
+			}
+
+			close(conn);
+			if (conn.state == State.READ || conn.state == State.PROXY) {
+				handler.handleTransportFailure(new SocketTimeoutException(conn.phase + " deadline exceeded"),
+						conn.remoteIp, conn.realIpKnown);
+			}
+		}
+	}
+
+	private void close(Connection conn) {
+		if (conn.closed) {
+			return;
+		}
+		conn.closed = true;
+		admission.release(conn.peerIp);
+		if (conn.deadline != null) {
+			conn.deadline.cancel();
+		}
+		if (conn.key != null) {
+			conn.key.cancel();
+		}
+		closeQuietly(conn.channel);
+		buffers.release(conn.data);
+		conn.data = null;
+	}
+
+	private void closeAll() {
+		for (SelectionKey key : selector.keys()) {
+			key.cancel();
+			if (key.channel() != serverChannel) {
+				closeQuietly(key.channel());
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	private static void closeQuietly(Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+	}
+}
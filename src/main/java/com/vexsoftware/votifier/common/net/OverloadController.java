@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Detects when the connection stage is overloaded and, while it is, sheds
+ * connections from addresses that have not delivered a vote recently so
+ * that known vote sites keep full service.
+ *
+ * Overload is judged from the connection queue depth and the RSA stage
+ * latency (waiting for a decrypt permit plus the decrypt itself). It is
+ * re-evaluated at most every {@link #EVALUATE_INTERVAL_MS} on the accept
+ * path, entered when either signal reaches its threshold and left once both
+ * have fallen below half of it, so the state does not flap.
+ */
+public class OverloadController {
+
+	private static final long EVALUATE_INTERVAL_MS = 100L;
+	private static final long LATENCY_STALE_NANOS = 2_000_000_000L;
+
+	private final VoteReceiver receiver;
+	private final IpStateMap<AtomicLong> knownSources;
+
+	private final AtomicLong lastEvaluateMs = new AtomicLong();
+	private volatile boolean overloaded;
+	private volatile long stageNanos;
+	private volatile long lastStageSampleNanos;
+	private volatile int queueDepth;
+
+	private final LongAdder shed = new LongAdder();
+	private final LongAdder overloadEpisodes = new LongAdder();
+
+	public OverloadController(VoteReceiver receiver) {
+		this.receiver = receiver;
+		this.knownSources = new IpStateMap<AtomicLong>(maxEntries(), 40, this::expiresAt);
+	}
+
+	/**
+	 * Remembers that {@code remoteIp} delivered a valid vote.
+	 */
+	public void recordSuccess(String remoteIp) {
+		long now = System.currentTimeMillis();
+		knownSources.getOrCreate(remoteIp, () -> new AtomicLong(now)).set(now);
+	}
+
+	/**
+	 * Reports how long one vote spent in the RSA stage, including the wait
+	 * for a decrypt permit.
+	 */
+	public void recordRsaStage(long nanos) {
+		long current = stageNanos;
+		stageNanos = current == 0 ? nanos : current + ((nanos - current) >> 3);
+		lastStageSampleNanos = System.nanoTime();
+	}
+
+	/**
+	 * Whether a new connection from {@code remoteIp} should be closed to shed
+	 * load. Tunnel endpoints and allow-listed addresses are never shed here;
+	 * the clients behind a tunnel are checked once their PROXY header is read.
+	 *
+	 * @param remoteIp remote IP address
+	 * @param throttle throttle service for the tunnel and allow lists
+	 * @return true if the connection should be closed
+	 */
+	public boolean shouldShed(String remoteIp, VoteThrottleService throttle) {
+		if (!isOverloaded()) {
+			return false;
+		}
+		if (throttle.isTunnelMode(remoteIp) || throttle.isProxyTrusted(remoteIp) || throttle.isAllowed(remoteIp)
+				|| isKnownSource(remoteIp)) {
+			return false;
+		}
+		shed.increment();
+		return true;
+	}
+
+	public boolean isKnownSource(String remoteIp) {
+		AtomicLong last = knownSources.get(remoteIp);
+		return last != null && expiresAt(last) > System.currentTimeMillis();
+	}
+
+	public boolean isOverloaded() {
+		long now = System.currentTimeMillis();
+		long last = lastEvaluateMs.get();
+		if (now - last >= EVALUATE_INTERVAL_MS && lastEvaluateMs.compareAndSet(last, now)) {
+			evaluate();
+		}
+		return overloaded;
+	}
+
+	private void evaluate() {
+		ReceiverConfig config = receiver.getReceiverConfig();
+		knownSources.setMaxEntries(maxEntries());
+
+		int depth;
+		int capacity;
+		AdaptiveThreadPool pool = receiver.getConnectionPool();
+		if (pool != null) {
+			depth = pool.getQueueDepth();
+			capacity = pool.getQueueCapacity();
+		} else {
+			depth = receiver.getDecryptPermits().getQueueLength();
+			capacity = config.connectionQueue;
+		}
+		queueDepth = depth;
+
+		long latencyMs = getRsaStageMs();
+		long depthPercent = capacity <= 0 ? 0 : depth * 100L / capacity;
+		boolean queueHigh = config.overloadQueuePercent > 0 && depthPercent >= config.overloadQueuePercent;
+		boolean latencyHigh = config.overloadLatencyMs > 0 && latencyMs >= config.overloadLatencyMs;
+
+		if (!overloaded) {
+			if (queueHigh || latencyHigh) {
+				overloaded = true;
+				overloadEpisodes.increment();
+				receiver.getVoteLog().warn(() -> "Vote receiver overloaded (connection queue " + depth + "/" + capacity
+						+ ", RSA stage " + latencyMs + "ms), shedding connections from unknown addresses");
+			}
+		} else {
+			boolean queueLow = config.overloadQueuePercent == 0 || depthPercent * 2 < config.overloadQueuePercent;
+			boolean latencyLow = config.overloadLatencyMs == 0 || latencyMs * 2 < config.overloadLatencyMs;
+			if (queueLow && latencyLow) {
+				overloaded = false;
+				long total = shed.sum();
+				receiver.getVoteLog().warn(() -> "Vote receiver load back to normal, shed " + total
+						+ " connections so far");
+			}
+		}
+	}
+
+	private int maxEntries() {
+		ThrottleConfig config = receiver.getThrottleConfig();
+		return config == null ? ThrottleConfig.DEFAULT_MAX_TRACKED : config.maxTracked;
+	}
+
+	/**
+	 * A known source stays known for KnownSourceWindow after its last vote.
+	 */
+	private long expiresAt(AtomicLong lastVoteMs) {
+		return lastVoteMs.get() + receiver.getReceiverConfig().knownSourceWindowMs;
+	}
+
+	/**
+	 * @return the average RSA stage latency, or 0 when no vote has been
+	 *         decrypted for a while
+	 */
+	public long getRsaStageMs() {
+		long last = lastStageSampleNanos;
+		if (last == 0 || System.nanoTime() - last > LATENCY_STALE_NANOS) {
+			return 0L;
+		}
+		return stageNanos / 1_000_000L;
+	}
+
+	public int getQueueDepth() { return queueDepth; }
+	public long getShedCount() { return shed.sum(); }
+	public long getOverloadCount() { return overloadEpisodes.sum(); }
+	public int getKnownSourceCount() { return knownSources.size(); }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Recognises common non-Votifier protocols from the first bytes of a V1
+ * payload, so port scanners are closed before any RSA work is spent on them.
+ * A V1 block is RSA ciphertext and looks like random bytes, so every
+ * signature is long enough that a genuine vote matches it with negligible
+ * probability (about one in 10^9 per vote across all of them).
+ */
+final class ProtocolSniffer {
+
+	/** Bytes after which a payload that matched nothing is treated as V1. */
+	static final int SNIFF_LENGTH = 32;
+
+	private static final byte[][] HTTP_METHODS = ascii("GET ", "POST ", "HEAD ", "PUT ", "DELETE ", "OPTIONS ",
+			"CONNECT ", "PATCH ", "TRACE ", "PRI * HTTP/2");
+	private static final byte[][] REDIS_INLINE = ascii("PING\r", "PING\n", "INFO\r", "INFO\n", "QUIT\r",
+			"QUIT\n");
+	private static final byte[] SSH = "SSH-".getBytes(StandardCharsets.US_ASCII);
+
+	private ProtocolSniffer() {
+	}
+
+	/**
+	 * @param data   the payload buffer
+	 * @param length number of valid bytes in {@code data}
+	 * @return a label for the protocol the payload belongs to ("http", "tls",
+	 *         "ssh", "redis" or "text"), or null if none is recognised in the
+	 *         bytes seen so far
+	 */
+	static String identify(byte[] data, int length) {
+		if (length < 4) {
+			return null;
+		}
+		if (isTlsClientHello(data, length)) {
+			return "tls";
+		}
+		if (startsWithAny(data, length, HTTP_METHODS)) {
+			return "http";
+		}
+		if (startsWith(data, length, SSH)) {
+			return "ssh";
+		}
+		if (isRedis(data, length)) {
+			return "redis";
+		}
+		if (isText(data, length)) {
+			return "text";
+		}
+		return null;
+	}
+
+	/**
+	 * TLS handshake record (0x16), version 3.x, declared length within the
+	 * record limit, carrying a ClientHello (handshake type 1).
+	 */
+	private static boolean isTlsClientHello(byte[] data, int length) {
+		return length >= 6 && data[0] == 0x16 && data[1] == 0x03 && (data[2] & 0xFF) <= 0x04
+				&& (data[3] & 0xFF) <= 0x48 && data[5] == 0x01;
+	}
+
+	/**
+	 * RESP array header ("*3\r\n$...") or a bare inline command.
+	 */
+	private static boolean isRedis(byte[] data, int length) {
+		if (data[0] == '*') {
+			int i = 1;
+			while (i < length && i < 4 && data[i] >= '0' && data[i] <= '9') {
+				i++;
+			}
+			return i > 1 && i + 2 < length && data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '$';
+		}
+		return startsWithAny(data, length, REDIS_INLINE);
+	}
+
+	/**
+	 * The first {@link #SNIFF_LENGTH} bytes are all printable ASCII or line
+	 * whitespace, as in any line-based text protocol.
+	 */
+	private static boolean isText(byte[] data, int length) {
+		if (length < SNIFF_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < SNIFF_LENGTH; i++) {
+			int b = data[i] & 0xFF;
+			if ((b < 0x20 || b > 0x7E) && b != '\r' && b != '\n' && b != '\t') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean startsWithAny(byte[] data, int length, byte[][] prefixes) {
+		for (byte[] prefix : prefixes) {
+			if (startsWith(data, length, prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+		if (length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[][] ascii(String... values) {
+		byte[][] bytes = new byte[values.length][];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = values[i].getBytes(StandardCharsets.US_ASCII);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes HAProxy PROXY protocol headers (v1 text and v2 binary) sent by
+ * trusted tunnels such as playit.gg or ngrok ahead of the Votifier exchange.
+ */
+public class ProxyProtocolDecoder {
+
+	private static final byte[] V2_SIGNATURE = { 0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54,
+			0x0A };
+	private static final byte[] V1_PREFIX = "PROXY ".getBytes(StandardCharsets.US_ASCII);
+	private static final int V1_MAX_LENGTH = 107;
+	private static final int V2_HEADER_LENGTH = 16;
+	private static final int V2_MAX_LENGTH = V2_HEADER_LENGTH + 536;
+
+	public static final int MAX_HEADER_LENGTH = V2_MAX_LENGTH;
+
+	/**
+	 * A decoded header.
+	 *
+	 * @param length     number of bytes the header occupied
+	 * @param sourceIp   real client address, or null for LOCAL/UNKNOWN
+	 *                   connections that carry no client address
+	 * @param sourcePort real client port, or 0 if unknown
+	 */
+	public record ProxyHeader(int length, String sourceIp, int sourcePort) {}
+
+	/**
+	 * Attempts to decode a header from the start of the buffer.
+	 *
+	 * @param data   the buffer
+	 * @param length number of valid bytes in {@code data}
+	 * @return the header, or null if more bytes are needed
+	 * @throws InvalidVoteException if the data is not a valid PROXY header
+	 */
+	public ProxyHeader decode(byte[] data, int length) throws InvalidVoteException {
+		if (length == 0) {
+			return null;
+		}
+		if (data[0] == V2_SIGNATURE[0]) {
+			return decodeV2(data, length);
+		}
+		if (data[0] == V1_PREFIX[0]) {
+			return decodeV1(data, length);
+		}
+		throw new InvalidVoteException("Missing PROXY protocol header from trusted tunnel");
+	}
+
+	private ProxyHeader decodeV1(byte[] data, int length) throws InvalidVoteException {
+		for (int i = 0; i < Math.min(length, V1_PREFIX.length); i++) {
+			if (data[i] != V1_PREFIX[i]) {
+				throw new InvalidVoteException("Malformed PROXY v1 header");
+			}
+		}
+
+		int end = -1;
+		for (int i = 1; i < Math.min(length, V1_MAX_LENGTH); i++) {
+			if (data[i - 1] == '\r' && data[i] == '\n') {
+				end = i + 1;
+				break;
+			}
+		}
+		if (end == -1) {
+			if (length >= V1_MAX_LENGTH) {
+				throw new InvalidVoteException("PROXY v1 header exceeds " + V1_MAX_LENGTH + " bytes");
+			}
+			return null;
+		}
+
+		String[] parts = new String(data, 0, end - 2, StandardCharsets.US_ASCII).split(" ");
+		if (parts.length >= 2 && "UNKNOWN".equals(parts[1])) {
+			return new ProxyHeader(end, null, 0);
+		}
+		if (parts.length != 6 || !("TCP4".equals(parts[1]) || "TCP6".equals(parts[1]))) {
+			throw new InvalidVoteException("Malformed PROXY v1 header");
+		}
+
+		try {
+			String sourceIp = InetAddress.getByName(requireLiteral(parts[2])).getHostAddress();
+			return new ProxyHeader(end, sourceIp, Integer.parseInt(parts[4]));
+		} catch (UnknownHostException | NumberFormatException ex) {
+			throw new InvalidVoteException("Malformed PROXY v1 address: " + ex.getMessage(), ex);
+		}
+	}
+
+	private ProxyHeader decodeV2(byte[] data, int length) throws InvalidVoteException {
+		for (int i = 0; i < Math.min(length, V2_SIGNATURE.length); i++) {
+			if (data[i] != V2_SIGNATURE[i]) {
+				throw new InvalidVoteException("Malformed PROXY v2 signature");
+			}
+		}
+		if (length < V2_HEADER_LENGTH) {
+			return null;
+		}
+
+		int versionCommand = data[12] & 0xFF;
+		if ((versionCommand >> 4) != 2) {
+			throw new InvalidVoteException("Unsupported PROXY protocol version " + (versionCommand >> 4));
+		}
+
+		int total = V2_HEADER_LENGTH + (((data[14] & 0xFF) << 8) | (data[15] & 0xFF));
+		if (total > V2_MAX_LENGTH) {
+			throw new InvalidVoteException("PROXY v2 header exceeds " + V2_MAX_LENGTH + " bytes");
+		}
+		if (length < total) {
+			return null;
+		}
+
+		boolean local = (versionCommand & 0x0F) == 0;
+		int family = (data[13] & 0xF0) >> 4;
+		try {
+			if (!local && family == 1 && total >= V2_HEADER_LENGTH + 12) {
+				byte[] ip = new byte[4];
+				System.arraycopy(data, V2_HEADER_LENGTH, ip, 0, 4);
+				int port = ((data[V2_HEADER_LENGTH + 8] & 0xFF) << 8) | (data[V2_HEADER_LENGTH + 9] & 0xFF);
+				return new ProxyHeader(total, InetAddress.getByAddress(ip).getHostAddress(), port);
+			}
+			if (!local && family == 2 && total >= V2_HEADER_LENGTH + 36) {
+				byte[] ip = new byte[16];
+				System.arraycopy(data, V2_HEADER_LENGTH, ip, 0, 16);
+				int port = ((data[V2_HEADER_LENGTH + 32] & 0xFF) << 8) | (data[V2_HEADER_LENGTH + 33] & 0xFF);
+				return new ProxyHeader(total, InetAddress.getByAddress(ip).getHostAddress(), port);
+			}
+		} catch (UnknownHostException ex) {
+			throw new InvalidVoteException("Malformed PROXY v2 address", ex);
+		}
+		return new ProxyHeader(total, null, 0);
+	}
+
+	private static String requireLiteral(String ip) throws UnknownHostException {
+		for (int i = 0; i < ip.length(); i++) {
+			char c = ip.charAt(i);
+			if (!(Character.digit(c, 16) >= 0 || c == '.' || c == ':')) {
+				throw new UnknownHostException("not an IP literal: " + ip);
+			}
+		}
+		return ip;
+	}
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+public class ReceiverConfig {
+
+	public enum Transport {
+		BLOCKING, NIO;
+
+		public static Transport getTransport(String name) {
+			for (Transport t : values()) {
+				if (t.name().equalsIgnoreCase(name))
+					return t;
+			}
+			return valueOf(DEFAULT_TRANSPORT);
+		}
+	}
+
+	public enum Execution {
+		PLATFORM, VIRTUAL;
+
+		public static Execution getExecution(String name) {
+			for (Execution e : values()) {
+				if (e.name().equalsIgnoreCase(name))
+					return e;
+			}
+			return valueOf(DEFAULT_EXECUTION);
+		}
+	}
+
+	/**
+	 * What a pipeline stage does with work when its queue is full.
+	 * RUN hands the work to the submitting thread, which slows the previous
+	 * stage down; DROP discards it with a warning.
+	 */
+	public enum Overflow {
+		RUN, DROP;
+
+		public static Overflow getOverflow(String name, Overflow def) {
+			for (Overflow o : values()) {
+				if (o.name().equalsIgnoreCase(name))
+					return o;
+			}
+			return def;
+		}
+	}
+
+	public static final String DEFAULT_TRANSPORT = "NIO";
+	public static final String DEFAULT_EXECUTION = "PLATFORM";
+	public static final int DEFAULT_MAX_CONCURRENT_DECRYPTS = 0;
+	public static final int DEFAULT_CONNECTION_WORKERS_MIN = 2;
+	public static final int DEFAULT_CONNECTION_WORKERS_MAX = 8;
+	public static final int DEFAULT_CONNECTION_QUEUE = 256;
+	public static final int DEFAULT_FORWARD_WORKERS_MIN = 1;
+	public static final int DEFAULT_FORWARD_WORKERS_MAX = 4;
+	public static final int DEFAULT_FORWARD_QUEUE = 512;
+	public static final String DEFAULT_FORWARD_OVERFLOW = "DROP";
+	public static final int DEFAULT_DISPATCH_WORKERS_MIN = 1;
+	public static final int DEFAULT_DISPATCH_WORKERS_MAX = 2;
+	public static final int DEFAULT_DISPATCH_QUEUE = 1024;
+	public static final String DEFAULT_DISPATCH_OVERFLOW = "RUN";
+	public static final int DEFAULT_ACCEPTOR_SHARDS = 1;
+	public static final int DEFAULT_ACCEPT_BACKLOG = 128;
+	public static final int DEFAULT_MAX_ACCEPTS_PER_SECOND = 0;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_IP = 8;
+	public static final String DEFAULT_HANDSHAKE_TIMEOUT = "2s";
+	public static final String DEFAULT_V1_TIMEOUT = "3s";
+	public static final String DEFAULT_V2_TIMEOUT = "5s";
+	public static final String DEFAULT_REPLAY_WINDOW = "10m";
+	public static final int DEFAULT_REPLAY_CAPACITY = 32768;
+	public static final String DEFAULT_DEDUP_WINDOW = "5m";
+	public static final int DEFAULT_DEDUP_CAPACITY = 16384;
+	public static final int DEFAULT_OVERLOAD_QUEUE_PERCENT = 75;
+	public static final String DEFAULT_OVERLOAD_LATENCY = "250ms";
+	public static final String DEFAULT_KNOWN_SOURCE_WINDOW = "24h";
+
+	public final Transport transport;
+	public final Execution execution;
+	public final int maxConcurrentDecrypts;
+	public final int connectionWorkersMin;
+	public final int connectionWorkersMax;
+	public final int connectionQueue;
+	public final int forwardWorkersMin;
+	public final int forwardWorkersMax;
+	public final int forwardQueue;
+	public final Overflow forwardOverflow;
+	public final int dispatchWorkersMin;
+	public final int dispatchWorkersMax;
+	public final int dispatchQueue;
+	public final Overflow dispatchOverflow;
+	public final int acceptorShards;
+	public final int acceptBacklog;
+	public final int maxAcceptsPerSecond;
+	public final int maxConnectionsPerIp;
+	public final long handshakeTimeoutMs;
+	public final long v1TimeoutMs;
+	public final long v2TimeoutMs;
+	public final long replayWindowMs;
+	public final int replayCapacity;
+	public final long dedupWindowMs;
+	public final int dedupCapacity;
+	public final int overloadQueuePercent;
+	public final long overloadLatencyMs;
+	public final long knownSourceWindowMs;
+
+	private ReceiverConfig(Builder builder) {
+		this.transport = Transport.getTransport(builder.transport == null ? "" : builder.transport.trim());
+		this.execution = Execution.getExecution(builder.execution == null ? "" : builder.execution.trim());
+		this.maxConcurrentDecrypts = builder.maxConcurrentDecrypts > 0 ? builder.maxConcurrentDecrypts
+				: Runtime.getRuntime().availableProcessors();
+		this.connectionWorkersMin = Math.max(1, builder.connectionWorkersMin);
+		this.connectionWorkersMax = Math.max(this.connectionWorkersMin, builder.connectionWorkersMax);
+		this.connectionQueue = Math.max(1, builder.connectionQueue);
+		this.forwardWorkersMin = Math.max(1, builder.forwardWorkersMin);
+		this.forwardWorkersMax = Math.max(this.forwardWorkersMin, builder.forwardWorkersMax);
+		this.forwardQueue = Math.max(1, builder.forwardQueue);
+		this.forwardOverflow = Overflow.getOverflow(
+				builder.forwardOverflow == null ? "" : builder.forwardOverflow.trim(),
+				Overflow.valueOf(DEFAULT_FORWARD_OVERFLOW));
+		this.dispatchWorkersMin = Math.max(1, builder.dispatchWorkersMin);
+		this.dispatchWorkersMax = Math.max(this.dispatchWorkersMin, builder.dispatchWorkersMax);
+		this.dispatchQueue = Math.max(1, builder.dispatchQueue);
+		this.dispatchOverflow = Overflow.getOverflow(
+				builder.dispatchOverflow == null ? "" : builder.dispatchOverflow.trim(),
+				Overflow.valueOf(DEFAULT_DISPATCH_OVERFLOW));
+		this.acceptorShards = Math.max(1, builder.acceptorShards);
+		this.acceptBacklog = builder.acceptBacklog > 0 ? builder.acceptBacklog : DEFAULT_ACCEPT_BACKLOG;
+		this.maxAcceptsPerSecond = Math.max(0, builder.maxAcceptsPerSecond);
+		this.maxConnectionsPerIp = Math.max(0, builder.maxConnectionsPerIp);
+		this.handshakeTimeoutMs = ThrottleConfig.durationMs(builder.handshakeTimeout, DEFAULT_HANDSHAKE_TIMEOUT);
+		this.v1TimeoutMs = ThrottleConfig.durationMs(builder.v1Timeout, DEFAULT_V1_TIMEOUT);
+		this.v2TimeoutMs = ThrottleConfig.durationMs(builder.v2Timeout, DEFAULT_V2_TIMEOUT);
+		this.replayWindowMs = windowMs(builder.replayWindow, DEFAULT_REPLAY_WINDOW);
+		this.replayCapacity = builder.replayCapacity > 0 ? builder.replayCapacity : DEFAULT_REPLAY_CAPACITY;
+		this.dedupWindowMs = windowMs(builder.dedupWindow, DEFAULT_DEDUP_WINDOW);
+		this.dedupCapacity = builder.dedupCapacity > 0 ? builder.dedupCapacity : DEFAULT_DEDUP_CAPACITY;
+		this.overloadQueuePercent = Math.max(0, Math.min(100, builder.overloadQueuePercent));
+		this.overloadLatencyMs = windowMs(builder.overloadLatency, DEFAULT_OVERLOAD_LATENCY);
+		this.knownSourceWindowMs = ThrottleConfig.durationMs(builder.knownSourceWindow,
+				DEFAULT_KNOWN_SOURCE_WINDOW);
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Parses a window duration where "0" switches the feature off.
+	 */
+	private static long windowMs(String raw, String fallback) {
+		if (raw != null && raw.trim().equals("0")) {
+			return 0;
+		}
+		return ThrottleConfig.durationMs(raw, fallback);
+	}
+
+	/**
+	 * Whether a running receiver can switch to {@code other} without rebinding
+	 * its sockets or rebuilding its executors. Worker Min/Max, accept limits and
+	 * timeouts can change live; transport layout, backlog, queue sizes and decrypt
+	 * permits cannot.
+	 */
+	public boolean isCompatible(ReceiverConfig other) {
+		return other != null && transport == other.transport && execution == other.execution
+				&& acceptorShards == other.acceptorShards && acceptBacklog == other.acceptBacklog
+				&& maxConcurrentDecrypts == other.maxConcurrentDecrypts
+				&& connectionQueue == other.connectionQueue && forwardQueue == other.forwardQueue
+				&& dispatchQueue == other.dispatchQueue;
+	}
+
+	public static ReceiverConfig defaults() {
+		return builder().build();
+	}
+
+	/**
+	 * Collects Receiver settings by name. Anything not set keeps its DEFAULT_
+	 * value.
+	 */
+	public static final class Builder {
+		private String transport = DEFAULT_TRANSPORT;
+		private String execution = DEFAULT_EXECUTION;
+		private int maxConcurrentDecrypts = DEFAULT_MAX_CONCURRENT_DECRYPTS;
+		private int connectionWorkersMin = DEFAULT_CONNECTION_WORKERS_MIN;
+		private int connectionWorkersMax = DEFAULT_CONNECTION_WORKERS_MAX;
+		private int connectionQueue = DEFAULT_CONNECTION_QUEUE;
+		private int forwardWorkersMin = DEFAULT_FORWARD_WORKERS_MIN;
+		private int forwardWorkersMax = DEFAULT_FORWARD_WORKERS_MAX;
+		private int forwardQueue = DEFAULT_FORWARD_QUEUE;
+		private String forwardOverflow = DEFAULT_FORWARD_OVERFLOW;
+		private int dispatchWorkersMin = DEFAULT_DISPATCH_WORKERS_MIN;
+		private int dispatchWorkersMax = DEFAULT_DISPATCH_WORKERS_MAX;
+		private int dispatchQueue = DEFAULT_DISPATCH_QUEUE;
+		private String dispatchOverflow = DEFAULT_DISPATCH_OVERFLOW;
+		private int acceptorShards = DEFAULT_ACCEPTOR_SHARDS;
+		private int acceptBacklog = DEFAULT_ACCEPT_BACKLOG;
+		private int maxAcceptsPerSecond = DEFAULT_MAX_ACCEPTS_PER_SECOND;
+		private int maxConnectionsPerIp = DEFAULT_MAX_CONNECTIONS_PER_IP;
+		private String handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+		private String v1Timeout = DEFAULT_V1_TIMEOUT;
+		private String v2Timeout = DEFAULT_V2_TIMEOUT;
+		private String replayWindow = DEFAULT_REPLAY_WINDOW;
+		private int replayCapacity = DEFAULT_REPLAY_CAPACITY;
+		private String dedupWindow = DEFAULT_DEDUP_WINDOW;
+		private int dedupCapacity = DEFAULT_DEDUP_CAPACITY;
+		private int overloadQueuePercent = DEFAULT_OVERLOAD_QUEUE_PERCENT;
+		private String overloadLatency = DEFAULT_OVERLOAD_LATENCY;
+		private String knownSourceWindow = DEFAULT_KNOWN_SOURCE_WINDOW;
+
+		private Builder() {
+		}
+
+		public Builder transport(String transport) {
+			this.transport = transport;
+			return this;
+		}
+
+		public Builder execution(String execution) {
+			this.execution = execution;
+			return this;
+		}
+
+		public Builder maxConcurrentDecrypts(int maxConcurrentDecrypts) {
+			this.maxConcurrentDecrypts = maxConcurrentDecrypts;
+			return this;
+		}
+
+		public Builder connectionWorkersMin(int connectionWorkersMin) {
+			this.connectionWorkersMin = connectionWorkersMin;
+			return this;
+		}
+
+		public Builder connectionWorkersMax(int connectionWorkersMax) {
+			this.connectionWorkersMax = connectionWorkersMax;
+			return this;
+		}
+
+		public Builder connectionQueue(int connectionQueue) {
+			this.connectionQueue = connectionQueue;
+			return this;
+		}
+
+		public Builder forwardWorkersMin(int forwardWorkersMin) {
+			this.forwardWorkersMin = forwardWorkersMin;
+			return this;
+		}
+
+		public Builder forwardWorkersMax(int forwardWorkersMax) {
+			this.forwardWorkersMax = forwardWorkersMax;
+			return this;
+		}
+
+		public Builder forwardQueue(int forwardQueue) {
+			this.forwardQueue = forwardQueue;
+			return this;
+		}
+
+		public Builder forwardOverflow(String forwardOverflow) {
+			this.forwardOverflow = forwardOverflow;
+			return this;
+		}
+
+		public Builder dispatchWorkersMin(int dispatchWorkersMin) {
+			this.dispatchWorkersMin = dispatchWorkersMin;
+			return this;
+		}
+
+		public Builder dispatchWorkersMax(int dispatchWorkersMax) {
+			this.dispatchWorkersMax = dispatchWorkersMax;
+			return this;
+		}
+
+		public Builder dispatchQueue(int dispatchQueue) {
+			this.dispatchQueue = dispatchQueue;
+			return this;
+		}
+
+		public Builder dispatchOverflow(String dispatchOverflow) {
+			this.dispatchOverflow = dispatchOverflow;
+			return this;
+		}
+
+		public Builder acceptorShards(int acceptorShards) {
+			this.acceptorShards = acceptorShards;
+			return this;
+		}
+
+		public Builder acceptBacklog(int acceptBacklog) {
+			this.acceptBacklog = acceptBacklog;
+			return this;
+		}
+
+		public Builder maxAcceptsPerSecond(int maxAcceptsPerSecond) {
+			this.maxAcceptsPerSecond = maxAcceptsPerSecond;
+			return this;
+		}
+
+		public Builder maxConnectionsPerIp(int maxConnectionsPerIp) {
+			this.maxConnectionsPerIp = maxConnectionsPerIp;
+			return this;
+		}
+
+		public Builder handshakeTimeout(String handshakeTimeout) {
+			this.handshakeTimeout = handshakeTimeout;
+			return this;
+		}
+
+		public Builder v1Timeout(String v1Timeout) {
+			this.v1Timeout = v1Timeout;
+			return this;
+		}
+
+		public Builder v2Timeout(String v2Timeout) {
+			this.v2Timeout = v2Timeout;
+			return this;
+		}
+
+		public Builder replayWindow(String replayWindow) {
+			this.replayWindow = replayWindow;
+			return this;
+		}
+
+		public Builder replayCapacity(int replayCapacity) {
+			this.replayCapacity = replayCapacity;
+			return this;
+		}
+
+		public Builder dedupWindow(String dedupWindow) {
+			this.dedupWindow = dedupWindow;
+			return this;
+		}
+
+		public Builder dedupCapacity(int dedupCapacity) {
+			this.dedupCapacity = dedupCapacity;
+			return this;
+		}
+
+		public Builder overloadQueuePercent(int overloadQueuePercent) {
+			this.overloadQueuePercent = overloadQueuePercent;
+			return this;
+		}
+
+		public Builder overloadLatency(String overloadLatency) {
+			this.overloadLatency = overloadLatency;
+			return this;
+		}
+
+		public Builder knownSourceWindow(String knownSourceWindow) {
+			this.knownSourceWindow = knownSourceWindow;
+			return this;
+		}
+
+		public ReceiverConfig build() {
+			return new ReceiverConfig(this);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.security.Key;
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vexsoftware.votifier.common.ForwardServer;
+
+/**
+ * Immutable copy of the settings a running receiver reads for every vote:
+ * RSA keys, V2 tokens, the forwarding table and throttle settings. A reload
+ * swaps in a new snapshot with a single volatile write, so connections in
+ * flight never see a half-loaded token map or forwarding table.
+ */
+public record ReceiverSnapshot(
+	KeyPair keyPair,
+	Map<String, Key> tokens,
+	boolean useTokens,
+	Map<String, ForwardServer> forwardServers,
+	ThrottleConfig throttleConfig
+) {
+
+	public ReceiverSnapshot {
+		tokens = tokens == null || tokens.isEmpty() ? Collections.<String, Key>emptyMap()
+				: Collections.unmodifiableMap(new HashMap<String, Key>(tokens));
+		forwardServers = forwardServers == null || forwardServers.isEmpty()
+				? Collections.<String, ForwardServer>emptyMap()
+				: Collections.unmodifiableMap(new LinkedHashMap<String, ForwardServer>(forwardServers));
+	}
+
+	public static ReceiverSnapshot capture(VotePlatform platform) {
+		Map<String, ForwardServer> servers = new LinkedHashMap<String, ForwardServer>();
+		for (String name : platform.getServers()) {
+			servers.put(name, platform.getServerData(name));
+		}
+		return new ReceiverSnapshot(platform.getKeyPair(), platform.getTokens(), platform.isUseTokens(), servers,
+				platform.getThrottleConfig());
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers 64-bit hashes of recently accepted V1 ciphertexts and V2
+ * signatures, and of V1 blocks that failed to decrypt, so an exact replay
+ * can be turned away before any RSA or HMAC work is done. The receiver also
+ * keeps one keyed by service, username and timestamp to drop votes a site
+ * delivers twice.
+ *
+ * Hashes live in two open-addressed generations of at most {@code capacity}
+ * entries each. The current generation becomes the previous one every
+ * window, or early when it fills up. A hash is therefore remembered for one
+ * to two windows unless more than {@code capacity} votes arrive within one,
+ * and memory stays fixed regardless of traffic. Hashes are
+ * seeded per instance so they cannot be precomputed from outside.
+ */
+public class ReplayCache {
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private final long windowNanos;
+	private final long windowMs;
+	private final int capacity;
+	private final long seed = new SecureRandom().nextLong();
+
+	private long[] current;
+	private long[] previous;
+	private int currentSize;
+	private int previousSize;
+	private long rotatedAt = System.nanoTime();
+
+	/**
+	 * @param windowMs how long an accepted hash is remembered at minimum
+	 * @param capacity maximum hashes per generation
+	 */
+	public ReplayCache(long windowMs, int capacity) {
+		this.windowMs = windowMs;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+		this.capacity = Math.max(16, capacity);
+		int tableSize = Integer.highestOneBit(this.capacity * 2 - 1) << 1;
+		this.current = new long[tableSize];
+		this.previous = new long[tableSize];
+	}
+
+	/**
+	 * Hashes the given bytes with this cache's seed.
+	 */
+	public long hash(byte[] data, int offset, int length) {
+		long h = seed;
+		int end = offset + length;
+		int i = offset;
+		for (; i + 8 <= end; i += 8) {
+			long k = (data[i] & 0xFFL) | (data[i + 1] & 0xFFL) << 8 | (data[i + 2] & 0xFFL) << 16
+					| (data[i + 3] & 0xFFL) << 24 | (data[i + 4] & 0xFFL) << 32 | (data[i + 5] & 0xFFL) << 40
+					| (data[i + 6] & 0xFFL) << 48 | (data[i + 7] & 0xFFL) << 56;
+			h ^= Long.rotateLeft(k * C1, 31) * C2;
+			h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+		}
+		long k = 0;
+		for (int shift = 0; i < end; i++, shift += 8) {
+			k |= (data[i] & 0xFFL) << shift;
+		}
+		h ^= Long.rotateLeft(k * C1, 31) * C2;
+		h ^= length;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * @return true if the hash was accepted within the replay window
+	 */
+	public synchronized boolean contains(long hash) {
+		expire(System.nanoTime());
+		return find(current, hash) || find(previous, hash);
+	}
+
+	/**
+	 * Records an accepted hash.
+	 *
+	 * @return false if the hash was already present, i.e. a concurrent replay
+	 *         got through {@link #contains(long)} at the same time
+	 */
+	public synchronized boolean add(long hash) {
+		expire(System.nanoTime());
+		if (find(current, hash) || find(previous, hash)) {
+			return false;
+		}
+		if (currentSize >= capacity) {
+			rotate();
+		}
+		long[] table = current;
+		int mask = table.length - 1;
+		int slot = (int) (hash ^ (hash >>> 32)) & mask;
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = hash;
+		currentSize++;
+		return true;
+	}
+
+	private void expire(long now) {
+		long age = now - rotatedAt;
+		if (age < windowNanos) {
+			return;
+		}
+		rotate();
+		if (age >= windowNanos * 2) {
+			rotate();
+		}
+		rotatedAt = now;
+	}
+
+	private void rotate() {
+		long[] recycled = previous;
+		Arrays.fill(recycled, 0L);
+		previous = current;
+		previousSize = currentSize;
+		current = recycled;
+		currentSize = 0;
+	}
+
+	private static boolean find(long[] table, long hash) {
+		int mask = table.length - 1;
+		int slot = (int) (hash ^ (hash >>> 32)) & mask;
+		long value;
+		while ((value = table[slot]) != 0) {
+			if (value == hash) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	public synchronized int getSize() { return currentSize + previousSize; }
+	public long getWindowMs() { return windowMs; }
+	public int getCapacity() { return capacity; }
+}
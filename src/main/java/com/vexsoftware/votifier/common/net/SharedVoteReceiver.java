@@ -19,6 +19,7 @@
  */
 package com.vexsoftware.votifier.common.net;
 
+import java.nio.file.Path;
 import java.security.Key;
 import java.security.KeyPair;
 import java.util.Map;
@@ -31,9 +32,26 @@ public class SharedVoteReceiver extends VoteReceiver {
 
 	private final VotePlatform platform;
 
+	private volatile ReceiverSnapshot snapshot;
+
 	public SharedVoteReceiver(VotePlatform platform) throws Exception {
-		super(platform.getHost(), platform.getPort());
+		super(platform.getHost(), platform.getPort(), platform.getReceiverConfig());
 		this.platform = platform;
+		this.snapshot = ReceiverSnapshot.capture(platform);
+	}
+
+	public ReceiverSnapshot getSnapshot() { return snapshot; }
+
+	@Override
+	public boolean reload() {
+		ReceiverConfig config = platform.getReceiverConfig();
+		if (!canReload(platform.getHost(), platform.getPort(), config)) {
+			return false;
+		}
+
+		snapshot = ReceiverSnapshot.capture(platform);
+		applyReload(config);
+		return true;
 	}
 
 	@Override public void logWarning(String warn) {
@@ -48,6 +66,9 @@ public class SharedVoteReceiver extends VoteReceiver {
 		if (platform != null) { platform.log(msg); return; }
 		System.out.println("[VotifierPlus] INFO: " + msg);
 	}
+	@Override public boolean isDebug() {
+		return platform != null && platform.isDebug();
+	}
 	@Override public void debug(String msg) {
 		if (platform != null && platform.isDebug()) platform.debugMessage(msg);
 	}
@@ -55,11 +76,12 @@ public class SharedVoteReceiver extends VoteReceiver {
 		if (platform != null && platform.isDebug()) platform.debugException(e);
 	}
 	@Override public String getVersion() { return platform.getVersion(); }
-	@Override public Set<String> getServers() { return platform.getServers(); }
-	@Override public ForwardServer getServerData(String s) { return platform.getServerData(s); }
-	@Override public KeyPair getKeyPair() { return platform.getKeyPair(); }
+	@Override public Set<String> getServers() { return snapshot.forwardServers().keySet(); }
+	@Override public ForwardServer getServerData(String s) { return snapshot.forwardServers().get(s); }
+	@Override public KeyPair getKeyPair() { return snapshot.keyPair(); }
 	@Override public void callEvent(Vote vote) { platform.callEvent(vote); }
-	@Override public Map<String, Key> getTokens() { return platform.getTokens(); }
-	@Override public boolean isUseTokens() { return platform.isUseTokens(); }
-	@Override public ThrottleConfig getThrottleConfig() { return platform.getThrottleConfig(); }
+	@Override public Map<String, Key> getTokens() { return snapshot.tokens(); }
+	@Override public boolean isUseTokens() { return snapshot.useTokens(); }
+	@Override public ThrottleConfig getThrottleConfig() { return snapshot.throttleConfig(); }
+	@Override public Path getDataDirectory() { return platform.getDataDirectory(); }
 }
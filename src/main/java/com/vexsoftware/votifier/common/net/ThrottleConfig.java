@@ -19,14 +19,49 @@
  */
 package com.vexsoftware.votifier.common.net;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+/**
+ * ConnectionThrottle settings. Built with {@link #builder()}, which starts
+ * from the DEFAULT_ values below; those are the only copy of the defaults
+ * the platforms fall back to.
+ */
 public class ThrottleConfig {
 
+	public static final boolean DEFAULT_ENABLED = true;
+	public static final boolean DEFAULT_PROXY_PROTOCOL = false;
+	public static final String DEFAULT_WINDOW = "2m";
+	public static final int DEFAULT_FAILURES = 20;
+	public static final String DEFAULT_THROTTLE_FOR = "5m";
+	public static final int DEFAULT_TUNNEL_FAILURES = 8;
+	public static final String DEFAULT_TUNNEL_THROTTLE_FOR = "10m";
+	public static final boolean DEFAULT_PER_CLIENT_BAN_ENABLED = true;
+	public static final int DEFAULT_PER_CLIENT_BAN_FAILURES = 6;
+	public static final String DEFAULT_PER_CLIENT_BAN_FOR = "15m";
+	public static final String DEFAULT_LOG_WINDOW = "60s";
+	public static final int DEFAULT_MAX_TRACKED = 100_000;
+	public static final int DEFAULT_SUBNET_FAILURES = 60;
+	public static final int DEFAULT_SUBNET_V4_PREFIX = 24;
+	public static final int DEFAULT_SUBNET_V6_PREFIX = 64;
+	public static final int DEFAULT_ADDRESS_VOTES = 0;
+	public static final String DEFAULT_ADDRESS_VOTES_PER = "1m";
+	public static final int DEFAULT_ADDRESS_VOTE_BURST = 60;
+	public static final int DEFAULT_SERVICE_VOTES = 0;
+	public static final String DEFAULT_SERVICE_VOTES_PER = "1m";
+	public static final int DEFAULT_SERVICE_VOTE_BURST = 60;
+	public static final String DEFAULT_SNAPSHOT_INTERVAL = "5m";
+	public static final int DEFAULT_SCAN_WEIGHT = 4;
+
 	public final boolean enabled;
 	public final Set<String> tunnelRemoteIps;
+	public final CidrTrie tunnelNetworks;
+	public final CidrTrie allowList;
+	public final CidrTrie denyList;
+	public final boolean proxyProtocol;
 	public final long windowMs;
 	public final int failures;
 	public final long throttleForMs;
@@ -36,30 +71,267 @@ public class ThrottleConfig {
 	public final int perClientBanFailures;
 	public final long perClientBanForMs;
 	public final long logWindowMs;
+	public final int maxTracked;
+	public final int subnetFailures;
+	public final int subnetV4Prefix;
+	public final int subnetV6Prefix;
+	/** Microseconds for one vote to refill per address, 0 = unlimited. */
+	public final long addressVoteIntervalUs;
+	public final int addressVoteBurst;
+	/** Microseconds for one vote to refill per service, 0 = unlimited. */
+	public final long serviceVoteIntervalUs;
+	public final int serviceVoteBurst;
+	/** How often throttle state is saved to disk, 0 = never saved or restored. */
+	public final long snapshotIntervalMs;
+	/** Failures a recognised non-Votifier protocol counts as. */
+	public final int scanWeight;
 
-	public ThrottleConfig(boolean enabled, Set<String> tunnelRemoteIps, String window, int failures,
-			String throttleFor, int tunnelFailures, String tunnelThrottleFor, boolean perClientBanEnabled,
-			int perClientBanFailures, String perClientBanFor, String logWindow) {
-		this.enabled = enabled;
+	private ThrottleConfig(Builder builder) {
+		this.enabled = builder.enabled;
 
-		if (tunnelRemoteIps == null || tunnelRemoteIps.isEmpty()) {
+		if (builder.tunnelRemoteIps == null || builder.tunnelRemoteIps.isEmpty()) {
 			this.tunnelRemoteIps = Collections.emptySet();
 		} else {
-			this.tunnelRemoteIps = Collections.unmodifiableSet(new HashSet<String>(tunnelRemoteIps));
-		}
-
-		this.windowMs = safeDurationMs(window, 2 * 60_000L);
-		this.failures = failures;
-		this.throttleForMs = safeDurationMs(throttleFor, 5 * 60_000L);
-		this.tunnelFailures = tunnelFailures;
-		this.tunnelThrottleForMs = safeDurationMs(tunnelThrottleFor, 10 * 60_000L);
-		this.perClientBanEnabled = perClientBanEnabled;
-		this.perClientBanFailures = perClientBanFailures;
-		this.perClientBanForMs = safeDurationMs(perClientBanFor, 15 * 60_000L);
-		this.logWindowMs = safeDurationMs(logWindow, 60_000L);
+			this.tunnelRemoteIps = Collections.unmodifiableSet(new HashSet<String>(builder.tunnelRemoteIps));
+		}
+		this.tunnelNetworks = new CidrTrie(this.tunnelRemoteIps);
+		this.allowList = builder.allowList == null || builder.allowList.isEmpty() ? CidrTrie.empty()
+				: new CidrTrie(builder.allowList);
+		this.denyList = builder.denyList == null || builder.denyList.isEmpty() ? CidrTrie.empty()
+				: new CidrTrie(builder.denyList);
+
+		this.proxyProtocol = builder.proxyProtocol;
+		this.windowMs = durationMs(builder.window, DEFAULT_WINDOW);
+		this.failures = builder.failures;
+		this.throttleForMs = durationMs(builder.throttleFor, DEFAULT_THROTTLE_FOR);
+		this.tunnelFailures = builder.tunnelFailures;
+		this.tunnelThrottleForMs = durationMs(builder.tunnelThrottleFor, DEFAULT_TUNNEL_THROTTLE_FOR);
+		this.perClientBanEnabled = builder.perClientBanEnabled;
+		this.perClientBanFailures = builder.perClientBanFailures;
+		this.perClientBanForMs = durationMs(builder.perClientBanFor, DEFAULT_PER_CLIENT_BAN_FOR);
+		this.logWindowMs = durationMs(builder.logWindow, DEFAULT_LOG_WINDOW);
+		this.maxTracked = builder.maxTracked > 0 ? builder.maxTracked : DEFAULT_MAX_TRACKED;
+		this.subnetFailures = Math.max(0, builder.subnetFailures);
+		this.subnetV4Prefix = Math.max(1, Math.min(32, builder.subnetV4Prefix));
+		this.subnetV6Prefix = Math.max(1, Math.min(128, builder.subnetV6Prefix));
+		this.addressVoteIntervalUs = voteIntervalUs(builder.addressVotes, builder.addressVotesPer,
+				DEFAULT_ADDRESS_VOTES_PER);
+		this.addressVoteBurst = Math.max(1, builder.addressVoteBurst);
+		this.serviceVoteIntervalUs = voteIntervalUs(builder.serviceVotes, builder.serviceVotesPer,
+				DEFAULT_SERVICE_VOTES_PER);
+		this.serviceVoteBurst = Math.max(1, builder.serviceVoteBurst);
+		this.snapshotIntervalMs = builder.snapshotInterval != null && builder.snapshotInterval.trim().equals("0")
+				? 0L
+				: durationMs(builder.snapshotInterval, DEFAULT_SNAPSHOT_INTERVAL);
+		this.scanWeight = Math.max(1, builder.scanWeight);
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return the refill interval for {@code votes} per {@code per}, or 0 when
+	 *         unlimited
+	 */
+	private static long voteIntervalUs(int votes, String per, String fallbackPer) {
+		if (votes <= 0) {
+			return 0L;
+		}
+		return Math.max(1L, durationMs(per, fallbackPer) * 1000L / votes);
+	}
+
+	/**
+	 * @return TunnelRemoteIps, AllowList and DenyList entries that are not an
+	 *         address or CIDR block
+	 */
+	public List<String> getInvalidEntries() {
+		List<String> invalid = new ArrayList<String>(tunnelNetworks.getInvalidEntries());
+		invalid.addAll(allowList.getInvalidEntries());
+		invalid.addAll(denyList.getInvalidEntries());
+		return invalid;
+	}
+
+	/**
+	 * Collects ConnectionThrottle settings by name. Anything not set keeps its
+	 * DEFAULT_ value.
+	 */
+	public static final class Builder {
+		private boolean enabled = DEFAULT_ENABLED;
+		private Set<String> tunnelRemoteIps = Collections.emptySet();
+		private boolean proxyProtocol = DEFAULT_PROXY_PROTOCOL;
+		private String window = DEFAULT_WINDOW;
+		private int failures = DEFAULT_FAILURES;
+		private String throttleFor = DEFAULT_THROTTLE_FOR;
+		private int tunnelFailures = DEFAULT_TUNNEL_FAILURES;
+		private String tunnelThrottleFor = DEFAULT_TUNNEL_THROTTLE_FOR;
+		private boolean perClientBanEnabled = DEFAULT_PER_CLIENT_BAN_ENABLED;
+		private int perClientBanFailures = DEFAULT_PER_CLIENT_BAN_FAILURES;
+		private String perClientBanFor = DEFAULT_PER_CLIENT_BAN_FOR;
+		private String logWindow = DEFAULT_LOG_WINDOW;
+		private int maxTracked = DEFAULT_MAX_TRACKED;
+		private Set<String> allowList = Collections.emptySet();
+		private Set<String> denyList = Collections.emptySet();
+		private int subnetFailures = DEFAULT_SUBNET_FAILURES;
+		private int subnetV4Prefix = DEFAULT_SUBNET_V4_PREFIX;
+		private int subnetV6Prefix = DEFAULT_SUBNET_V6_PREFIX;
+		private int addressVotes = DEFAULT_ADDRESS_VOTES;
+		private String addressVotesPer = DEFAULT_ADDRESS_VOTES_PER;
+		private int addressVoteBurst = DEFAULT_ADDRESS_VOTE_BURST;
+		private int serviceVotes = DEFAULT_SERVICE_VOTES;
+		private String serviceVotesPer = DEFAULT_SERVICE_VOTES_PER;
+		private int serviceVoteBurst = DEFAULT_SERVICE_VOTE_BURST;
+		private String snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+		private int scanWeight = DEFAULT_SCAN_WEIGHT;
+
+		private Builder() {
+		}
+
+		public Builder enabled(boolean enabled) {
+			this.enabled = enabled;
+			return this;
+		}
+
+		public Builder tunnelRemoteIps(Set<String> tunnelRemoteIps) {
+			this.tunnelRemoteIps = tunnelRemoteIps;
+			return this;
+		}
+
+		public Builder proxyProtocol(boolean proxyProtocol) {
+			this.proxyProtocol = proxyProtocol;
+			return this;
+		}
+
+		public Builder window(String window) {
+			this.window = window;
+			return this;
+		}
+
+		public Builder failures(int failures) {
+			this.failures = failures;
+			return this;
+		}
+
+		public Builder throttleFor(String throttleFor) {
+			this.throttleFor = throttleFor;
+			return this;
+		}
+
+		public Builder tunnelFailures(int tunnelFailures) {
+			this.tunnelFailures = tunnelFailures;
+			return this;
+		}
+
+		public Builder tunnelThrottleFor(String tunnelThrottleFor) {
+			this.tunnelThrottleFor = tunnelThrottleFor;
+			return this;
+		}
+
+		public Builder perClientBanEnabled(boolean perClientBanEnabled) {
+			this.perClientBanEnabled = perClientBanEnabled;
+			return this;
+		}
+
+		public Builder perClientBanFailures(int perClientBanFailures) {
+			this.perClientBanFailures = perClientBanFailures;
+			return this;
+		}
+
+		public Builder perClientBanFor(String perClientBanFor) {
+			this.perClientBanFor = perClientBanFor;
+			return this;
+		}
+
+		public Builder logWindow(String logWindow) {
+			this.logWindow = logWindow;
+			return this;
+		}
+
+		public Builder maxTracked(int maxTracked) {
+			this.maxTracked = maxTracked;
+			return this;
+		}
+
+		public Builder allowList(Set<String> allowList) {
+			this.allowList = allowList;
+			return this;
+		}
+
+		public Builder denyList(Set<String> denyList) {
+			this.denyList = denyList;
+			return this;
+		}
+
+		public Builder subnetFailures(int subnetFailures) {
+			this.subnetFailures = subnetFailures;
+			return this;
+		}
+
+		public Builder subnetV4Prefix(int subnetV4Prefix) {
+			this.subnetV4Prefix = subnetV4Prefix;
+			return this;
+		}
+
+		public Builder subnetV6Prefix(int subnetV6Prefix) {
+			this.subnetV6Prefix = subnetV6Prefix;
+			return this;
+		}
+
+		public Builder addressVotes(int addressVotes) {
+			this.addressVotes = addressVotes;
+			return this;
+		}
+
+		public Builder addressVotesPer(String addressVotesPer) {
+			this.addressVotesPer = addressVotesPer;
+			return this;
+		}
+
+		public Builder addressVoteBurst(int addressVoteBurst) {
+			this.addressVoteBurst = addressVoteBurst;
+			return this;
+		}
+
+		public Builder serviceVotes(int serviceVotes) {
+			this.serviceVotes = serviceVotes;
+			return this;
+		}
+
+		public Builder serviceVotesPer(String serviceVotesPer) {
+			this.serviceVotesPer = serviceVotesPer;
+			return this;
+		}
+
+		public Builder serviceVoteBurst(int serviceVoteBurst) {
+			this.serviceVoteBurst = serviceVoteBurst;
+			return this;
+		}
+
+		public Builder snapshotInterval(String snapshotInterval) {
+			this.snapshotInterval = snapshotInterval;
+			return this;
+		}
+
+		public Builder scanWeight(int scanWeight) {
+			this.scanWeight = scanWeight;
+			return this;
+		}
+
+		public ThrottleConfig build() {
+			return new ThrottleConfig(this);
+		}
+	}
+
+	/**
+	 * Parses {@code raw}, falling back to the parsed {@code fallback} default
+	 * when it is missing or invalid.
+	 */
+	static long durationMs(String raw, String fallback) {
+		return safeDurationMs(raw, safeDurationMs(fallback, 0L));
 	}
 
-	private static long safeDurationMs(String raw, long fallback) {
+
+	static long safeDurationMs(String raw, long fallback) {
 		try {
 			if (raw == null || raw.isEmpty()) {
 				return fallback;
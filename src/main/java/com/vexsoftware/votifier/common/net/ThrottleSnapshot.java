@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary snapshot of throttle and ban state, so a restart does not hand
+ * scanners a fresh failure budget.
+ *
+ * Layout (big-endian): magic, version, save time (ms), record count, then
+ * one record per address or subnet: a flags byte ({@link #SUBNET},
+ * {@link #V4}), the key (4 bytes for IPv4, 16 otherwise), the packed failure
+ * window and the blocked-until time. Times are wall-clock, so bans keep
+ * running down while the server is offline. Snapshots are written to a
+ * temporary file and moved into place.
+ */
+final class ThrottleSnapshot {
+
+	/**
+	 * Receives the records of a snapshot being read.
+	 */
+	interface RecordVisitor {
+		/**
+		 * @return true if the record was restored
+		 */
+		boolean visit(boolean subnet, long hi, long lo, long window, long blockedUntilMs);
+	}
+
+	private static final int MAGIC = 0x56545331;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 4;
+	private static final int COUNT_OFFSET = 16;
+
+	private static final byte SUBNET = 1;
+	private static final byte V4 = 2;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(4096);
+	private int count;
+
+	ThrottleSnapshot(long savedAtMs) {
+		buffer.putInt(MAGIC).putInt(VERSION).putLong(savedAtMs).putInt(0);
+	}
+
+	void add(boolean subnet, long hi, long lo, long window, long blockedUntilMs) {
+		ensureRemaining(1 + 16 + 8 + 8);
+		boolean v4 = IpAddresses.isV4(hi, lo);
+		buffer.put((byte) ((subnet ? SUBNET : 0) | (v4 ? V4 : 0)));
+		if (v4) {
+			buffer.putInt((int) lo);
+		} else {
+			buffer.putLong(hi).putLong(lo);
+		}
+		buffer.putLong(window).putLong(blockedUntilMs);
+		count++;
+	}
+
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Writes the snapshot, replacing {@code file} atomically where the file
+	 * system allows it.
+	 */
+	void writeTo(Path file) throws IOException {
+		buffer.putInt(COUNT_OFFSET, count);
+		buffer.flip();
+
+		Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		try {
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Reads {@code file} and passes every record to {@code visitor}.
+	 *
+	 * @return the number of records the visitor restored, 0 if there is no
+	 *         snapshot
+	 * @throws IOException if the file cannot be read or is not a valid snapshot
+	 */
+	static int read(Path file, RecordVisitor visitor) throws IOException {
+		if (!Files.isRegularFile(file)) {
+			return 0;
+		}
+		// Read onto the heap rather than mapping: a live mapping keeps the file
+		// locked on Windows and the next save could not replace it.
+		ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+		if (in.remaining() < HEADER_BYTES) {
+			throw new IOException("Throttle snapshot " + file + " is truncated");
+		}
+		if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+			throw new IOException("Throttle snapshot " + file + " has an unknown format");
+		}
+		in.getLong();
+		int records = in.getInt();
+
+		int restored = 0;
+		try {
+			for (int i = 0; i < records; i++) {
+				byte flags = in.get();
+				long hi;
+				long lo;
+				if ((flags & V4) != 0) {
+					hi = 0L;
+					lo = IpAddresses.V4_MAPPED | (in.getInt() & 0xFFFFFFFFL);
+				} else {
+					hi = in.getLong();
+					lo = in.getLong();
+				}
+				long window = in.getLong();
+				long blockedUntilMs = in.getLong();
+				if (visitor.visit((flags & SUBNET) != 0, hi, lo, window, blockedUntilMs)) {
+					restored++;
+				}
+			}
+		} catch (BufferUnderflowException ex) {
+			throw new IOException("Throttle snapshot " + file + " is truncated after " + restored + " entries");
+		}
+		return restored;
+	}
+
+	private void ensureRemaining(int bytes) {
+		if (buffer.remaining() < bytes) {
+			ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+			buffer.flip();
+			grown.put(buffer);
+			buffer = grown;
+		}
+	}
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Single-pass scanner for the fixed Votifier V2 envelope
+ * ({@code {"payload":"...","signature":"..."}}) and the vote object inside
+ * its payload.
+ *
+ * The payload string is unescaped straight into a scratch buffer so the HMAC
+ * can be checked over its raw UTF-8 bytes before any field is turned into a
+ * String. Anything outside the common shape (arrays, nested values, escapes
+ * inside inner fields) makes {@link #scan} return
+ * false so the caller can fall back to the general JSON parser.
+ */
+public class V2EnvelopeScanner {
+
+	public static final int SERVICE_NAME = 0;
+	public static final int USERNAME = 1;
+	public static final int ADDRESS = 2;
+	public static final int TIMESTAMP = 3;
+	public static final int CHALLENGE = 4;
+
+	private static final byte[] PAYLOAD = ascii("payload");
+	private static final byte[] SIGNATURE = ascii("signature");
+	private static final byte[][] FIELDS = { ascii("serviceName"), ascii("username"), ascii("address"),
+			ascii("timestamp"), ascii("challenge") };
+
+	private final byte[] payload;
+	private final int[] valueStart = new int[FIELDS.length];
+	private final int[] valueEnd = new int[FIELDS.length];
+	private int payloadLength;
+	private byte[] signature;
+
+	private byte[] src;
+	private int pos;
+	private int end;
+
+	/**
+	 * @param scratch buffer receiving the unescaped payload; must be at least
+	 *                as large as the frame being scanned
+	 */
+	public V2EnvelopeScanner(byte[] scratch) {
+		this.payload = scratch;
+	}
+
+	/**
+	 * Scans an envelope.
+	 *
+	 * @return true if the envelope and vote object were fully decoded
+	 */
+	public boolean scan(byte[] data, int offset, int length) {
+		src = data;
+		pos = offset;
+		end = offset + length;
+		payloadLength = -1;
+		signature = null;
+
+		if (!scanEnvelope()) {
+			return false;
+		}
+
+		src = payload;
+		pos = 0;
+		end = payloadLength;
+		Arrays.fill(valueStart, -1);
+		if (!scanVote()) {
+			return false;
+		}
+
+		for (int i = 0; i < FIELDS.length; i++) {
+			if (valueStart[i] < 0 || isBlank(valueStart[i], valueEnd[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public byte[] getPayload() { return payload; }
+	public int getPayloadLength() { return payloadLength; }
+	public byte[] getSignature() { return signature; }
+
+	public String value(int field) {
+		return new String(payload, valueStart[field], valueEnd[field] - valueStart[field], StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Compares a field against an ASCII string without decoding it.
+	 */
+	public boolean valueEquals(int field, String expected) {
+		int start = valueStart[field];
+		int length = valueEnd[field] - start;
+		if (length != expected.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if ((payload[start + i] & 0xFF) != expected.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean scanEnvelope() {
+		skipWhitespace();
+		if (!consume('{')) {
+			return false;
+		}
+
+		while (true) {
+			skipWhitespace();
+			int keyStart = pos;
+			if (!skipPlainString()) {
+				return false;
+			}
+			int keyEnd = pos - 1;
+
+			skipWhitespace();
+			if (!consume(':')) {
+				return false;
+			}
+			skipWhitespace();
+
+			if (keyEquals(keyStart + 1, keyEnd, PAYLOAD)) {
+				if (!unescapePayload()) {
+					return false;
+				}
+			} else if (keyEquals(keyStart + 1, keyEnd, SIGNATURE)) {
+				if (!decodeSignature()) {
+					return false;
+				}
+			} else if (!skipScalar()) {
+				return false;
+			}
+
+			skipWhitespace();
+			if (consume(',')) {
+				continue;
+			}
+			if (!consume('}')) {
+				return false;
+			}
+			skipWhitespace();
+			return pos == end && payloadLength >= 0 && signature != null;
+		}
+	}
+
+	private boolean scanVote() {
+		skipWhitespace();
+		if (!consume('{')) {
+			return false;
+		}
+		skipWhitespace();
+		if (consume('}')) {
+			return true;
+		}
+
+		while (true) {
+			skipWhitespace();
+			int keyStart = pos;
+			if (!skipPlainString()) {
+				return false;
+			}
+			int keyEnd = pos - 1;
+
+			skipWhitespace();
+			if (!consume(':')) {
+				return false;
+			}
+			skipWhitespace();
+
+			int field = -1;
+			for (int i = 0; i < FIELDS.length; i++) {
+				if (keyEquals(keyStart + 1, keyEnd, FIELDS[i])) {
+					field = i;
+					break;
+				}
+			}
+
+			int start = pos;
+			if (field >= 0) {
+				if (pos < end && src[pos] == '"') {
+					if (!skipPlainString()) {
+						return false;
+					}
+					valueStart[field] = start + 1;
+					valueEnd[field] = pos - 1;
+				} else if (skipNumber()) {
+					valueStart[field] = start;
+					valueEnd[field] = pos;
+				} else {
+					return false;
+				}
+			} else if (!skipScalar()) {
+				return false;
+			}
+
+			skipWhitespace();
+			if (consume(',')) {
+				continue;
+			}
+			if (!consume('}')) {
+				return false;
+			}
+			skipWhitespace();
+			return pos == end;
+		}
+	}
+
+	/**
+	 * Unescapes the payload string into the scratch buffer as UTF-8.
+	 */
+	private boolean unescapePayload() {
+		if (!consume('"')) {
+			return false;
+		}
+
+		int out = 0;
+		while (pos < end) {
+			byte b = src[pos++];
+			if (b == '"') {
+				payloadLength = out;
+				return true;
+			}
+			if (out + 3 > payload.length || (b >= 0 && b < 0x20)) {
+				return false;
+			}
+			if (b != '\\') {
+				payload[out++] = b;
+				continue;
+			}
+			if (pos >= end) {
+				return false;
+			}
+
+			byte escape = src[pos++];
+			switch (escape) {
+				case '"': case '\\': case '/': payload[out++] = escape; break;
+				case 'b': payload[out++] = '\b'; break;
+				case 'f': payload[out++] = '\f'; break;
+				case 'n': payload[out++] = '\n'; break;
+				case 'r': payload[out++] = '\r'; break;
+				case 't': payload[out++] = '\t'; break;
+				case 'u':
+					int c = readHex4();
+					if (c < 0 || (c >= 0xD800 && c <= 0xDFFF)) {
+						return false;
+					}
+					if (c < 0x80) {
+						payload[out++] = (byte) c;
+					} else if (c < 0x800) {
+						payload[out++] = (byte) (0xC0 | (c >> 6));
+						payload[out++] = (byte) (0x80 | (c & 0x3F));
+					} else {
+						payload[out++] = (byte) (0xE0 | (c >> 12));
+						payload[out++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+						payload[out++] = (byte) (0x80 | (c & 0x3F));
+					}
+					break;
+				default:
+					return false;
+			}
+		}
+		return false;
+	}
+
+	private boolean decodeSignature() {
+		if (!consume('"')) {
+			return false;
+		}
+
+		int start = pos;
+		int escapes = 0;
+		while (pos < end && src[pos] != '"') {
+			if (src[pos] == '\\') {
+				if (pos + 1 >= end || src[pos + 1] != '/') {
+					return false;
+				}
+				escapes++;
+				pos++;
+			}
+			pos++;
+		}
+		if (pos >= end) {
+			return false;
+		}
+
+		byte[] raw = new byte[pos - start - escapes];
+		for (int i = start, out = 0; i < pos; i++) {
+			if (src[i] != '\\') {
+				raw[out++] = src[i];
+			}
+		}
+		pos++;
+
+		try {
+			signature = Base64.getDecoder().decode(raw);
+			return true;
+		} catch (IllegalArgumentException ex) {
+			return false;
+		}
+	}
+
+	private int readHex4() {
+		if (pos + 4 > end) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			int digit = Character.digit(src[pos++], 16);
+			if (digit < 0) {
+				return -1;
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Skips a string containing no escapes, leaving {@code pos} after the
+	 * closing quote.
+	 */
+	private boolean skipPlainString() {
+		if (!consume('"')) {
+			return false;
+		}
+		while (pos < end) {
+			byte b = src[pos++];
+			if (b == '"') {
+				return true;
+			}
+			if (b == '\\' || (b >= 0 && b < 0x20)) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private boolean skipNumber() {
+		int start = pos;
+		while (pos < end) {
+			byte b = src[pos];
+			if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+				pos++;
+			} else {
+				break;
+			}
+		}
+		return pos > start && src[start] != '+' && src[start] != '.';
+	}
+
+	/**
+	 * Skips an ignored member value: a string (escapes allowed), number or
+	 * literal. Objects and arrays are left to the general parser.
+	 */
+	private boolean skipScalar() {
+		if (pos < end && src[pos] == '"') {
+			pos++;
+			while (pos < end) {
+				byte b = src[pos++];
+				if (b == '"') {
+					return true;
+				}
+				if (b == '\\') {
+					pos++;
+				}
+			}
+			return false;
+		}
+		if (skipLiteral("true") || skipLiteral("false") || skipLiteral("null")) {
+			return true;
+		}
+		return skipNumber();
+	}
+
+	private boolean skipLiteral(String literal) {
+		if (pos + literal.length() > end) {
+			return false;
+		}
+		for (int i = 0; i < literal.length(); i++) {
+			if (src[pos + i] != literal.charAt(i)) {
+				return false;
+			}
+		}
+		pos += literal.length();
+		return true;
+	}
+
+	private boolean keyEquals(int start, int stop, byte[] key) {
+		if (stop - start != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (src[start + i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isBlank(int start, int stop) {
+		for (int i = start; i < stop; i++) {
+			byte b = payload[i];
+			if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean consume(char c) {
+		if (pos < end && src[pos] == c) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	private void skipWhitespace() {
+		while (pos < end) {
+			byte b = src[pos];
+			if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+				return;
+			}
+			pos++;
+		}
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
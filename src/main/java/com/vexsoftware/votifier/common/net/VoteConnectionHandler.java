@@ -7,6 +7,7 @@
 package com.vexsoftware.votifier.common.net;
 
 import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PushbackInputStream;
 import java.net.Socket;
@@ -17,6 +18,7 @@ import javax.crypto.BadPaddingException;
 
 import com.google.gson.JsonObject;
 import com.google.gson.stream.MalformedJsonException;
+import com.vexsoftware.votifier.common.net.ProxyProtocolDecoder.ProxyHeader;
 import com.vexsoftware.votifier.model.Vote;
 
 public class VoteConnectionHandler {
@@ -24,162 +26,368 @@ public class VoteConnectionHandler {
 	private final VoteReceiver receiver;
 	private final VoteThrottleService throttleService;
 	private final VoteParser voteParser;
+	private final ProxyProtocolDecoder proxyDecoder = new ProxyProtocolDecoder();
+	private final BufferPool bufferPool;
 
 	public VoteConnectionHandler(VoteReceiver receiver, VoteThrottleService throttleService) {
 		this.receiver = receiver;
 		this.throttleService = throttleService;
-		this.voteParser = new VoteParser();
+		this.voteParser = new VoteParser(receiver.getDecryptPermits());
+		this.bufferPool = receiver.getBufferPool();
 	}
 
 	public Vote handle(Socket socket) {
 		String remoteIp = "unknown";
 		String address = "";
-		String throttleKey = null;
 		boolean tunnelMode = false;
+		boolean realIpKnown = false;
+		ReceiverConfig config = receiver.getReceiverConfig();
+		DeadlineWheel.Timeout deadline = null;
+		String phase = "Handshake";
 
 		try (Socket accepted = socket;
-				PushbackInputStream in = new PushbackInputStream(accepted.getInputStream(), 512);
+				PushbackInputStream in = new PushbackInputStream(accepted.getInputStream(),
+						ProxyProtocolDecoder.MAX_HEADER_LENGTH + 512);
 				BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(accepted.getOutputStream()))) {
 
 			remoteIp = accepted.getInetAddress().getHostAddress();
 			address = accepted.getRemoteSocketAddress() == null ? "/" + remoteIp
 					: accepted.getRemoteSocketAddress().toString();
 
-			receiver.debug("Accepted connection from: " + address);
-			accepted.setSoTimeout(5000);
+			String acceptedFrom = address;
+			receiver.getVoteLog().debug(() -> "Accepted connection from: " + acceptedFrom);
+			deadline = arm(null, config.handshakeTimeoutMs, accepted);
 
-			String challenge = receiver.getChallenge();
-			sendHandshakeIfNeeded(in, writer, challenge);
+			if (throttleService.isProxyTrusted(remoteIp)) {
+				tunnelMode = throttleService.isTunnelMode(remoteIp);
+				ProxyHeader header = readProxyHeader(in, address);
+				if (header == null) {
+					return null;
+				}
+				if (header.sourceIp() != null) {
+					String tunnelIp = remoteIp;
+					String clientAddress = proxiedAddress(header);
+					address = clientAddress;
+					receiver.getVoteLog().debug(() -> "PROXY header from " + tunnelIp + " names client " + clientAddress);
+					remoteIp = header.sourceIp();
+					realIpKnown = true;
+					if (!receiver.getAdmissionController().admitClient(remoteIp)) {
+						return null;
+					}
+				}
+			}
+
+			String challenge = sendHandshakeIfNeeded(in, writer);
 
-			if (!waitForPayload(in, accepted, address)) {
+			if (!waitForPayload(in, address)) {
 				return null;
 			}
 
 			tunnelMode = throttleService.isTunnelMode(remoteIp);
-			throttleKey = "ip:" + remoteIp;
 
-			if (throttleService.isBlocked(throttleKey)) {
-				long retry = throttleService.retryAfterMs(throttleKey);
-				throttleService.logWarning(receiver, "throttle|" + throttleKey, "Votifier throttling " + throttleKey
-						+ " (tunnel=" + tunnelMode + "), retry in " + Math.max(0, retry / 1000) + "s");
-				return null;
+			VoteProtocolVersion version = voteParser.detectVersion(in);
+			receiver.getVoteLog().debug(() -> "Detected vote protocol version: " + version);
+			phase = version.name();
+			deadline = arm(deadline, version == VoteProtocolVersion.V1 ? config.v1TimeoutMs : config.v2TimeoutMs,
+					accepted);
+			if (version == VoteProtocolVersion.V1) {
+				voteParser.checkForeignProtocol(in);
 			}
 
-			VoteProtocolVersion version = voteParser.detectVersion(in);
-			receiver.debug("Detected vote protocol version: " + version);
+			VoteRequest request;
+			byte[] buffer = bufferPool.acquire();
+			try {
+				int length = voteParser.readFrame(in, version, buffer, address);
+				if (version == VoteProtocolVersion.V1) {
+					voteParser.checkForeignProtocol(buffer, length);
+					if (length < VoteParser.V1_BLOCK_SIZE) {
+						rejectShortV1(remoteIp, tunnelMode, realIpKnown);
+						return null;
+					}
+				}
+				request = voteParser.parse(buffer, length, version, receiver, address, challenge);
+			} finally {
+				bufferPool.release(buffer);
+			}
+			Vote vote = accept(request, remoteIp);
 
-			if (version == VoteProtocolVersion.V1 && in.available() < 256) {
-				throttleService.fail(throttleKey, tunnelMode, false);
-				throttleService.logWarning(receiver, "shortv1|" + throttleKey,
-						"Invalid vote format: Insufficient data for V1 vote block from "
-								+ remoteIp + " (expected 256 bytes)");
-				return null;
+			if (!isTestVote(vote)) {
+				sendOkResponse(writer);
 			}
 
-			VoteRequest request = voteParser.parse(in, version, receiver, address, challenge);
+			return vote;
+		} catch (Exception ex) {
+			if (deadline != null && deadline.isExpired()) {
+				handleFailure(new SocketTimeoutException(phase + " deadline exceeded"), remoteIp, tunnelMode,
+						realIpKnown);
+			} else {
+				handleFailure(ex, remoteIp, tunnelMode, realIpKnown);
+			}
+		} finally {
+			if (deadline != null) {
+				deadline.cancel();
+			}
+		}
 
-			Vote vote = new Vote();
-			vote.setServiceName(request.serviceName());
-			vote.setUsername(request.username());
-			vote.setAddress(request.address());
-			vote.setTimeStamp(request.timeStamp());
-			vote.setSourceAddress(remoteIp);
+		return null;
+	}
 
-			if ("TestVote".equalsIgnoreCase(vote.getTimeStamp())) {
-				receiver.log("Test vote received");
-			}
+	/**
+	 * Verifies a fully buffered payload read by a non-blocking transport. The
+	 * caller is responsible for sending the OK response when a non-test vote is
+	 * returned.
+	 *
+	 * @param data        the payload buffer
+	 * @param length      number of valid bytes in {@code data}
+	 * @param remoteIp    remote IP address
+	 * @param address     remote address string for logging/errors
+	 * @param challenge   challenge sent in the handshake
+	 * @param realIpKnown whether {@code remoteIp} came from a PROXY header
+	 * @return the accepted vote, or null if it was rejected
+	 */
+	public Vote handle(byte[] data, int length, String remoteIp, String address, String challenge,
+			boolean realIpKnown) {
+		boolean tunnelMode = false;
 
-			receiver.log("Received vote record -> " + vote);
-			throttleService.success(throttleKey);
+		try {
+			tunnelMode = throttleService.isTunnelMode(remoteIp);
 
-			if (!"TestVote".equalsIgnoreCase(vote.getTimeStamp())) {
-				sendOkResponse(writer);
+			VoteProtocolVersion version = voteParser.detectVersion(data, length);
+			receiver.getVoteLog().debug(() -> "Detected vote protocol version: " + version);
+
+			if (version == VoteProtocolVersion.V1) {
+				voteParser.checkForeignProtocol(data, length);
+				if (length < VoteParser.V1_BLOCK_SIZE) {
+					rejectShortV1(remoteIp, tunnelMode, realIpKnown);
+					return null;
+				}
 			}
 
-			return vote;
-		} catch (InvalidVoteException ex) {
-			if (throttleKey == null) throttleKey = "ip:" + remoteIp;
-			throttleService.fail(throttleKey, tunnelMode, false);
-			throttleService.logWarning(receiver, "invalid|" + throttleKey,
-					"Invalid vote format from " + remoteIp + ": " + ex.getMessage());
-		} catch (VoteAuthenticationException ex) {
-			if (throttleKey == null) throttleKey = "ip:" + remoteIp;
-			throttleService.fail(throttleKey, tunnelMode, false);
-			throttleService.logWarning(receiver, "auth|" + throttleKey,
-					"Authentication failed from " + remoteIp + ": " + ex.getMessage());
-		} catch (MalformedJsonException ex) {
-			if (throttleKey == null) throttleKey = "ip:" + remoteIp;
-			throttleService.fail(throttleKey, tunnelMode, false);
-			throttleService.logWarning(receiver, "malformedjson|" + throttleKey,
-					"Invalid vote format: Malformed JSON payload from " + remoteIp + " - " + ex.getMessage());
-		} catch (BadPaddingException ex) {
-			if (throttleKey == null) throttleKey = "ip:" + remoteIp;
-			throttleService.fail(throttleKey, tunnelMode, false);
-			throttleService.logWarning(receiver, "badpadding|" + throttleKey,
-					"Decryption failed: Invalid V1 vote block / public key mismatch from " + remoteIp);
-		} catch (SocketTimeoutException ex) {
-			throttleService.logWarning(receiver, "timeout|" + remoteIp,
-					"Connection timeout while waiting for vote payload from " + remoteIp + " - " + ex.getMessage());
-		} catch (SocketException ex) {
-			throttleService.logWarning(receiver, "socket|" + remoteIp,
-					"Connection error: Protocol error from " + remoteIp + " - " + ex.getLocalizedMessage());
+			VoteRequest request = voteParser.parse(data, length, version, receiver, address, challenge);
+			return accept(request, remoteIp);
 		} catch (Exception ex) {
-			throttleService.logWarning(receiver, "generic|" + remoteIp, "Error processing vote from " + remoteIp + ": "
-					+ (ex.getLocalizedMessage() == null ? ex.getClass().getSimpleName() : ex.getLocalizedMessage()));
+			handleFailure(ex, remoteIp, tunnelMode, realIpKnown);
 		}
 
 		return null;
 	}
 
-	private void sendHandshakeIfNeeded(PushbackInputStream in, BufferedWriter writer, String challenge)
-			throws Exception {
-		String message = receiver.isUseTokens() ? "VOTIFIER 2" : "VOTIFIER 1";
+	/**
+	 * Reports a transport-level failure (timeout, reset) for a connection that
+	 * never produced a complete payload.
+	 *
+	 * @param ex          the failure
+	 * @param remoteIp    remote IP address
+	 * @param realIpKnown whether {@code remoteIp} came from a PROXY header
+	 */
+	public void handleTransportFailure(Exception ex, String remoteIp, boolean realIpKnown) {
+		handleFailure(ex, remoteIp, throttleService.isTunnelMode(remoteIp), realIpKnown);
+	}
+
+	public VoteParser getVoteParser() {
+		return voteParser;
+	}
+
+	public ProxyProtocolDecoder getProxyDecoder() {
+		return proxyDecoder;
+	}
+
+	public boolean isProxyTrusted(String remoteIp) {
+		return throttleService.isProxyTrusted(remoteIp);
+	}
+
+	public String proxiedAddress(ProxyHeader header) {
+		String ip = header.sourceIp().indexOf(':') >= 0 ? "[" + header.sourceIp() + "]" : header.sourceIp();
+		return "/" + ip + ":" + header.sourcePort();
+	}
+
+	/**
+	 * @return a challenge for the handshake, or null when tokens are disabled
+	 *         and the V1 handshake carries none
+	 */
+	public String newChallenge() {
+		return receiver.isUseTokens() ? receiver.getChallenge() : null;
+	}
+
+	public String getHandshakeMessage(String challenge) {
 		if (receiver.isUseTokens()) {
-			message += " " + challenge;
+			return "VOTIFIER 2 " + challenge;
 		}
+		return "VOTIFIER 1";
+	}
+
+	public String getOkResponse() {
+		JsonObject okResponse = new JsonObject();
+		okResponse.addProperty("status", "ok");
+		return okResponse.toString() + "\r\n";
+	}
+
+	public boolean isTestVote(Vote vote) {
+		return "TestVote".equalsIgnoreCase(vote.getTimeStamp());
+	}
+
+	private void rejectShortV1(String remoteIp, boolean tunnelMode, boolean realIpKnown) {
+		throttleService.fail(remoteIp, ThrottleFailure.SHORT_V1, tunnelMode, realIpKnown);
+		receiver.getVoteLog().warn(LogTopic.SHORT_V1, remoteIp,
+				() -> "Invalid vote format: Insufficient data for V1 vote block from "
+						+ remoteIp + " (expected 256 bytes)");
+	}
 
+	private Vote accept(VoteRequest request, String remoteIp) throws VoteRateLimitException {
+		Vote vote = new Vote();
+		vote.setServiceName(request.serviceName());
+		vote.setUsername(request.username());
+		vote.setAddress(request.address());
+		vote.setTimeStamp(request.timeStamp());
+		vote.setSourceAddress(remoteIp);
+
+		if (isTestVote(vote)) {
+			receiver.getVoteLog().info(() -> "Test vote received");
+		} else if (!throttleService.tryAcquireAddressVote(remoteIp)) {
+			throw new VoteRateLimitException("address is over its vote rate, dropped " + vote);
+		} else if (!throttleService.tryAcquireServiceVote(vote.getServiceName())) {
+			throw new VoteRateLimitException("service " + vote.getServiceName() + " is over its vote rate, dropped "
+					+ vote);
+		} else {
+			OverloadController overload = receiver.getOverloadController();
+			if (overload != null) {
+				overload.recordSuccess(remoteIp);
+			}
+		}
+
+		receiver.getVoteLog().info(() -> "Received vote record -> " + vote);
+		throttleService.success(remoteIp);
+		return vote;
+	}
+
+	private void handleFailure(Exception ex, String remoteIp, boolean tunnelMode, boolean realIpKnown) {
+		if (ex instanceof InvalidVoteException) {
+			throttleService.fail(remoteIp, ThrottleFailure.INVALID, tunnelMode, realIpKnown);
+			receiver.getVoteLog().warn(LogTopic.INVALID, remoteIp,
+					() -> "Invalid vote format from " + remoteIp + ": " + ex.getMessage());
+		} else if (ex instanceof VoteAuthenticationException) {
+			throttleService.fail(remoteIp, ThrottleFailure.AUTH, tunnelMode, realIpKnown);
+			receiver.getVoteLog().warn(LogTopic.AUTH, remoteIp,
+					() -> "Authentication failed from " + remoteIp + ": " + ex.getMessage());
+		} else if (ex instanceof VoteReplayException) {
+			throttleService.fail(remoteIp, ThrottleFailure.REPLAY, tunnelMode, realIpKnown);
+			receiver.getVoteLog().warn(LogTopic.REPLAY, remoteIp,
+					() -> "Replayed vote rejected from " + remoteIp + ": " + ex.getMessage());
+		} else if (ex instanceof VoteScanException) {
+			throttleService.fail(remoteIp, ThrottleFailure.SCAN, tunnelMode, realIpKnown);
+			receiver.getVoteLog().warn(LogTopic.SCAN, remoteIp,
+					() -> "Connection from " + remoteIp + " is not a vote: " + ex.getMessage());
+		} else if (ex instanceof VoteRateLimitException) {
+			receiver.getVoteLog().warn(LogTopic.RATE_LIMIT, remoteIp,
+					() -> "Vote rate limit hit from " + remoteIp + ": " + ex.getMessage());
+		} else if (ex instanceof MalformedJsonException) {
+			throttleService.fail(remoteIp, ThrottleFailure.MALFORMED_JSON, tunnelMode, realIpKnown);
+			receiver.getVoteLog().warn(LogTopic.MALFORMED_JSON, remoteIp,
+					() -> "Invalid vote format: Malformed JSON payload from " + remoteIp + " - " + ex.getMessage());
+		} else if (ex instanceof BadPaddingException) {
+			throttleService.fail(remoteIp, ThrottleFailure.BAD_PADDING, tunnelMode, realIpKnown);
+			receiver.getVoteLog().warn(LogTopic.BAD_PADDING, remoteIp,
+					() -> "Decryption failed: Invalid V1 vote block / public key mismatch from " + remoteIp);
+		} else if (ex instanceof SocketTimeoutException) {
+			throttleService.fail(remoteIp, ThrottleFailure.TIMEOUT, tunnelMode, realIpKnown);
+			receiver.getVoteLog().warn(LogTopic.TIMEOUT, remoteIp,
+					() -> "Connection timeout while waiting for vote payload from " + remoteIp + " - " + ex.getMessage());
+		} else if (ex instanceof SocketException) {
+			receiver.getVoteLog().warn(LogTopic.SOCKET, remoteIp,
+					() -> "Connection error: Protocol error from " + remoteIp + " - " + ex.getLocalizedMessage());
+		} else {
+			receiver.getVoteLog().warn(LogTopic.GENERIC, remoteIp, () -> "Error processing vote from " + remoteIp + ": "
+					+ (ex.getLocalizedMessage() == null ? ex.getClass().getSimpleName() : ex.getLocalizedMessage()));
+		}
+	}
+
+	/**
+	 * Reads the PROXY header a trusted tunnel sends before anything else. Bytes
+	 * read past the header are pushed back for the vote parser.
+	 *
+	 * @return the header, or null if the tunnel closed before sending one
+	 */
+	private ProxyHeader readProxyHeader(PushbackInputStream in, String address) throws IOException,
+			InvalidVoteException {
+		byte[] buffer = new byte[ProxyProtocolDecoder.MAX_HEADER_LENGTH];
+		int length = 0;
+
+		while (true) {
+			int read = in.read(buffer, length, buffer.length - length);
+			if (read == -1) {
+				receiver.getVoteLog().debug(() -> "Connection closed before PROXY header from " + address);
+				return null;
+			}
+			length += read;
+
+			ProxyHeader header = proxyDecoder.decode(buffer, length);
+			if (header != null) {
+				if (length > header.length()) {
+					in.unread(buffer, header.length(), length - header.length());
+				}
+				return header;
+			}
+		}
+	}
+
+	/**
+	 * Writes the handshake unless a V1 block is already buffered.
+	 *
+	 * @return the challenge sent, or null if none was
+	 */
+	private String sendHandshakeIfNeeded(PushbackInputStream in, BufferedWriter writer) throws Exception {
 		int available = in.available();
 		if (available >= 256) {
-			receiver.debug("Detected V1 vote payload before handshake (available bytes: " + available
+			receiver.getVoteLog().debug(() -> "Detected V1 vote payload before handshake (available bytes: " + available
 					+ "), skipping handshake.");
-			return;
+			return null;
 		}
 
+		String challenge = newChallenge();
+		String message = getHandshakeMessage(challenge);
 		writer.write(message);
 		writer.newLine();
 		writer.flush();
-		receiver.debug("Sent handshake: " + message);
+		receiver.getVoteLog().debug(() -> "Sent handshake: " + message);
+		return challenge;
 	}
 
-	private boolean waitForPayload(PushbackInputStream in, Socket socket, String address) throws Exception {
-		int previousTimeout = socket.getSoTimeout();
+	private boolean waitForPayload(PushbackInputStream in, String address) throws Exception {
+		int firstByte = in.read();
+		if (firstByte == -1) {
+			receiver.getVoteLog().debug(() -> "Connection closed without payload from " + address);
+			return false;
+		}
 
-		try {
-			socket.setSoTimeout(2000);
-			int firstByte = in.read();
-			if (firstByte == -1) {
-				receiver.debug("Connection closed without payload from " + address);
-				return false;
-			}
+		in.unread(firstByte);
+		return true;
+	}
 
-			in.unread(firstByte);
-			return true;
-		} finally {
-			socket.setSoTimeout(previousTimeout);
+	/**
+	 * Replaces the connection's deadline with a new phase budget. Blocked reads
+	 * are interrupted by closing the socket from the timer thread.
+	 */
+	private DeadlineWheel.Timeout arm(DeadlineWheel.Timeout previous, long budgetMs, final Socket socket) {
+		if (previous != null && !previous.cancel()) {
+			return previous;
 		}
+		return receiver.getDeadlineWheel().schedule(budgetMs, () -> {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		});
 	}
 
 	private void sendOkResponse(BufferedWriter writer) {
 		try {
-			JsonObject okResponse = new JsonObject();
-			okResponse.addProperty("status", "ok");
-			String okMessage = okResponse.toString() + "\r\n";
+			String okMessage = getOkResponse();
 			writer.write(okMessage);
 			writer.flush();
-			receiver.debug("Sent OK response: " + okMessage);
+			receiver.getVoteLog().debug(() -> "Sent OK response: " + okMessage);
 		} catch (Exception ex) {
-			receiver.debug(
-					"Failed to send OK response, but will continue to process vote: " + ex.getLocalizedMessage());
+			receiver.getVoteLog().debug(
+					() -> "Failed to send OK response, but will continue to process vote: " + ex.getLocalizedMessage());
 		}
 	}
 }
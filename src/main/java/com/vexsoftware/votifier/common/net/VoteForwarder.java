@@ -57,11 +57,11 @@ public class VoteForwarder {
 			ForwardServer server = receiver.getServerData(name);
 
 			if (!server.isEnabled()) {
-				receiver.debug("Skipping disabled forward server: " + name);
+				receiver.getVoteLog().debug(() -> "Skipping disabled forward server: " + name);
 				continue;
 			}
 
-			receiver.debug("Preparing to forward vote to: " + name + ", tokens mode: " + server.isUseTokens());
+			receiver.getVoteLog().debug(() -> "Preparing to forward vote to: " + name + ", tokens mode: " + server.isUseTokens());
 
 			try (Socket socket = new Socket()) {
 				socket.connect(new InetSocketAddress(server.getHost(), server.getPort()), 1000);
@@ -72,7 +72,7 @@ public class VoteForwarder {
 				OutputStream out = socket.getOutputStream();
 
 				String greeting = in.readLine();
-				receiver.debug("Received handshake from " + name + ": '" + greeting + "'");
+				receiver.getVoteLog().debug(() -> "Received handshake from " + name + ": '" + greeting + "'");
 
 				byte[] payload;
 				if (server.isUseTokens()) {
@@ -92,8 +92,10 @@ public class VoteForwarder {
 
 					String innerJson = inner.toString();
 
-					Mac mac = Mac.getInstance("HmacSHA256");
-					mac.init(server.getToken());
+					Mac mac = receiver.getForwardMacs().get(name);
+					if (mac == null) {
+						throw new IllegalStateException("No token configured for forward server " + name);
+					}
 					String sig = Base64.getEncoder()
 							.encodeToString(mac.doFinal(innerJson.getBytes(StandardCharsets.UTF_8)));
 
@@ -105,14 +107,14 @@ public class VoteForwarder {
 				} else {
 					String voteString = String.join("\n", OPCODE_VOTE, vote.getServiceName(), vote.getUsername(),
 							vote.getAddress(), vote.getTimeStamp(), "") + "\n";
-					payload = receiver.encrypt(voteString.getBytes(StandardCharsets.UTF_8), receiver.getPublicKey(server));
+					payload = receiver.encrypt(voteString.getBytes(StandardCharsets.UTF_8), server);
 				}
 
 				out.write(payload);
 				out.flush();
-				receiver.debug("Payload forwarded to " + name + " (" + payload.length + " bytes)");
+				receiver.getVoteLog().debug(() -> "Payload forwarded to " + name + " (" + payload.length + " bytes)");
 			} catch (Exception ex) {
-				receiver.log("Failed to forward vote to " + name + ": " + ex.getClass().getSimpleName() + " - "
+				receiver.getVoteLog().info(() -> "Failed to forward vote to " + name + ": " + ex.getClass().getSimpleName() + " - "
 						+ ex.getMessage());
 			}
 		}
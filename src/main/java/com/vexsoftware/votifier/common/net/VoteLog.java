@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2012 Vex Software LLC
+ * Based on VotifierPlus by BenCodez (https://github.com/BenCodez/VotifierPlus).
+ * Optimizations by vanes430.
+ * This file is part of VotifierPlus.
+ *
+ * VotifierPlus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VotifierPlus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VotifierPlus.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.vexsoftware.votifier.common.net;
+
+import java.util.StringJoiner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous logging for the vote path.
+ *
+ * Messages are passed as suppliers and only built once they are known to be
+ * written: debug messages when debug output is on, warnings when their
+ * rate limit lets them through. Accepted messages go into a bounded queue
+ * that one daemon thread drains into the platform logger, so worker threads
+ * never wait on logger I/O. When the queue is full the message is dropped
+ * and counted.
+ *
+ * Rate-limited warnings are allowed once per {@link LogTopic} per address per
+ * log window. Per address this is a single packed long (window start in the
+ * upper bits, a bitmask of the topics already logged in the lower bits).
+ * Repeats are only counted, and the drainer writes one summary of them per
+ * log window.
+ */
+public class VoteLog {
+
+	private enum Level {
+		DEBUG, INFO, WARNING
+	}
+
+	private static final class Entry {
+		private final Level level;
+		private final Supplier<String> message;
+
+		private Entry(Level level, Supplier<String> message) {
+			this.level = level;
+			this.message = message;
+		}
+	}
+
+	private static final int TOPIC_BITS = 20;
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private final VoteReceiver receiver;
+	private final VoteThrottleService throttleService;
+	private final BlockingQueue<Entry> queue;
+	private final IpStateMap<AtomicLong> addressStates;
+	private final AtomicLong globalState = new AtomicLong();
+	private final LongAdder[] suppressed = new LongAdder[LogTopic.values().length];
+	private final LongAdder dropped = new LongAdder();
+	private final Thread drainer;
+	private volatile boolean running = true;
+
+	public VoteLog(VoteReceiver receiver, VoteThrottleService throttleService) {
+		this(receiver, throttleService, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param receiver        receiver whose platform logger is written to
+	 * @param throttleService supplies the log window and entry cap
+	 * @param capacity        queued messages before new ones are dropped
+	 */
+	public VoteLog(VoteReceiver receiver, VoteThrottleService throttleService, int capacity) {
+		this.receiver = receiver;
+		this.throttleService = throttleService;
+		this.queue = new ArrayBlockingQueue<Entry>(Math.max(16, capacity));
+		this.addressStates = new IpStateMap<AtomicLong>(maxEntries(), 24, this::expiresAt);
+		for (int i = 0; i < suppressed.length; i++) {
+			suppressed[i] = new LongAdder();
+		}
+		this.drainer = new Thread(this::drain, "Votifier Log");
+		this.drainer.setDaemon(true);
+		this.drainer.start();
+	}
+
+	public void debug(Supplier<String> message) {
+		if (receiver.isDebug()) {
+			enqueue(Level.DEBUG, message);
+		}
+	}
+
+	public void info(Supplier<String> message) {
+		enqueue(Level.INFO, message);
+	}
+
+	public void warn(Supplier<String> message) {
+		enqueue(Level.WARNING, message);
+	}
+
+	/**
+	 * Logs a warning unless {@code topic} was already logged for this address
+	 * in the current log window.
+	 */
+	public void warn(LogTopic topic, String remoteIp, Supplier<String> message) {
+		AtomicLong state = addressStates.getOrCreate(remoteIp, AtomicLong::new);
+		if (allow(state, topic)) {
+			enqueue(Level.WARNING, message);
+		}
+	}
+
+	/**
+	 * Logs a warning unless {@code topic} was already logged in the current log
+	 * window, for warnings that are not about one address.
+	 */
+	public void warn(LogTopic topic, Supplier<String> message) {
+		if (allow(globalState, topic)) {
+			enqueue(Level.WARNING, message);
+		}
+	}
+
+	/**
+	 * Stops the drainer after it has written what is already queued. Later
+	 * messages are written on the calling thread.
+	 */
+	public void shutdown() {
+		running = false;
+		drainer.interrupt();
+	}
+
+	private boolean allow(AtomicLong state, LogTopic topic) {
+		long now = System.currentTimeMillis();
+		long windowMs = windowMs();
+		long bit = 1L << topic.ordinal();
+		while (true) {
+			long current = state.get();
+			long next;
+			if (now - (current >>> TOPIC_BITS) >= windowMs) {
+				next = now << TOPIC_BITS | bit;
+			} else if ((current & bit) != 0) {
+				suppressed[topic.ordinal()].increment();
+				return false;
+			} else {
+				next = current | bit;
+			}
+			if (state.compareAndSet(current, next)) {
+				return true;
+			}
+		}
+	}
+
+	private void enqueue(Level level, Supplier<String> message) {
+		if (!running) {
+			write(new Entry(level, message));
+		} else if (!queue.offer(new Entry(level, message))) {
+			dropped.increment();
+		}
+	}
+
+	private void drain() {
+		long nextSummaryMs = System.currentTimeMillis() + windowMs();
+		while (running || !queue.isEmpty()) {
+			try {
+				long waitMs = Math.max(1L, nextSummaryMs - System.currentTimeMillis());
+				Entry entry = running ? queue.poll(waitMs, TimeUnit.MILLISECONDS) : queue.poll();
+				if (entry != null) {
+					write(entry);
+				}
+			} catch (InterruptedException ex) {
+				// shutdown() interrupts; the loop drains what is left
+			}
+			long now = System.currentTimeMillis();
+			if (now >= nextSummaryMs || !running) {
+				summarize();
+				addressStates.setMaxEntries(maxEntries());
+				nextSummaryMs = now + windowMs();
+			}
+		}
+	}
+
+	private void write(Entry entry) {
+		try {
+			String message = entry.message.get();
+			switch (entry.level) {
+				case DEBUG:
+					receiver.debug(message);
+					break;
+				case INFO:
+					receiver.log(message);
+					break;
+				default:
+					receiver.logWarning(message);
+					break;
+			}
+		} catch (RuntimeException ex) {
+			receiver.debug(ex);
+		}
+	}
+
+	/**
+	 * Writes one line counting the warnings suppressed and messages dropped
+	 * since the previous summary, if there were any.
+	 */
+	private void summarize() {
+		StringJoiner topics = new StringJoiner(", ", " (", ")");
+		long total = 0;
+		for (LogTopic topic : LogTopic.values()) {
+			long count = suppressed[topic.ordinal()].sumThenReset();
+			if (count > 0) {
+				topics.add(topic.getLabel() + " " + count);
+				total += count;
+			}
+		}
+		long lost = dropped.sumThenReset();
+		if (total == 0 && lost == 0) {
+			return;
+		}
+		StringBuilder summary = new StringBuilder("Suppressed ").append(total).append(" repeated warnings in the last ")
+				.append(windowMs() / 1000).append("s");
+		if (total > 0) {
+			summary.append(topics);
+		}
+		if (lost > 0) {
+			summary.append(", dropped ").append(lost).append(" log lines while the log queue was full");
+		}
+		receiver.logWarning(summary.toString());
+	}
+
+	private long windowMs() {
+		ThrottleConfig config = throttleService.getConfig();
+		return config != null ? Math.max(250L, config.logWindowMs) : 60_000L;
+	}
+
+	private int maxEntries() {
+		ThrottleConfig config = throttleService.getConfig();
+		return config == null ? ThrottleConfig.DEFAULT_MAX_TRACKED : config.maxTracked;
+	}
+
+	/**
+	 * An address entry matters while it can still suppress a repeat.
+	 */
+	private long expiresAt(AtomicLong state) {
+		return (state.get() >>> TOPIC_BITS) + windowMs();
+	}
+
+	public int getQueueDepth() { return queue.size(); }
+	public IpStateMap<?> getAddressStates() { return addressStates; }
+}
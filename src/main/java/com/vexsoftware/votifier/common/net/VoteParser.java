@@ -19,21 +19,21 @@
  */
 package com.vexsoftware.votifier.common.net;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PushbackInputStream;
 import java.nio.charset.StandardCharsets;
-import java.security.Key;
+import java.security.GeneralSecurityException;
 import java.util.Base64;
-import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
-import com.vexsoftware.votifier.common.crypto.RSA;
+import com.vexsoftware.votifier.common.crypto.MacTable;
 
 /**
  * Parses incoming vote payloads.
@@ -43,6 +43,10 @@ public class VoteParser {
 	private static final Gson GSON = new Gson();
 	private static final short PROTOCOL_2_MAGIC = (short) 0x733A;
 
+	/** Largest V2 frame accepted, including the optional 4-byte magic/length header. */
+	public static final int MAX_FRAME_SIZE = 16 * 1024;
+	public static final int V1_BLOCK_SIZE = 256;
+
 	private static final String FIELD_PAYLOAD = "payload";
 	private static final String FIELD_SIGNATURE = "signature";
 	private static final String FIELD_SERVICE_NAME = "serviceName";
@@ -52,6 +56,19 @@ public class VoteParser {
 	private static final String FIELD_CHALLENGE = "challenge";
 	private static final String OPCODE_VOTE = "VOTE";
 
+	private final Semaphore decryptPermits;
+
+	public VoteParser() {
+		this(null);
+	}
+
+	/**
+	 * @param decryptPermits caps concurrent RSA decrypts, or null for no limit
+	 */
+	public VoteParser(Semaphore decryptPermits) {
+		this.decryptPermits = decryptPermits;
+	}
+
 	/**
 	 * Detects the vote protocol version from the first bytes of the stream.
 	 *
@@ -61,7 +78,14 @@ public class VoteParser {
 	 */
 	public VoteProtocolVersion detectVersion(PushbackInputStream in) throws Exception {
 		byte[] header = new byte[2];
-		int bytesRead = in.read(header);
+		int bytesRead = 0;
+		while (bytesRead < 2) {
+			int read = in.read(header, bytesRead, 2 - bytesRead);
+			if (read == -1) {
+				break;
+			}
+			bytesRead += read;
+		}
 		if (bytesRead < 2) {
 			throw new Exception("Not enough data available to determine vote protocol version.");
 		}
@@ -82,46 +106,247 @@ public class VoteParser {
 	}
 
 	/**
-	 * Parses the vote payload based on the detected protocol version.
+	 * Whether a frame starting with {@code first} can be V2, for callers that
+	 * have only one byte so far: V2 starts with '{' or the first magic byte.
+	 */
+	public boolean mayBeV2(byte first) {
+		return first == '{' || (first & 0xFF) == (PROTOCOL_2_MAGIC >>> 8 & 0xFF);
+	}
+
+	/**
+	 * Detects the vote protocol version from the first bytes of a buffered
+	 * payload.
 	 *
-	 * @param in        the input stream
+	 * @param data   the payload buffer
+	 * @param length number of valid bytes in {@code data}
+	 * @return the detected protocol version
+	 * @throws Exception if there is not enough data to determine the protocol
+	 */
+	public VoteProtocolVersion detectVersion(byte[] data, int length) throws Exception {
+		if (length < 2) {
+			throw new Exception("Not enough data available to determine vote protocol version.");
+		}
+
+		if ((char) data[0] == '{') {
+			return VoteProtocolVersion.V2;
+		}
+
+		short magic = (short) (((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+		if (magic == PROTOCOL_2_MAGIC) {
+			return VoteProtocolVersion.V2;
+		}
+
+		return VoteProtocolVersion.V1;
+	}
+
+	/**
+	 * Rejects a V1 payload whose first bytes belong to another protocol, before
+	 * any RSA work is done on it.
+	 *
+	 * @param data   the payload buffer
+	 * @param length number of valid bytes in {@code data}
+	 * @throws VoteScanException if the payload is HTTP, TLS, SSH, Redis or
+	 *                           plain text
+	 */
+	public void checkForeignProtocol(byte[] data, int length) throws VoteScanException {
+		String protocol = ProtocolSniffer.identify(data, length);
+		if (protocol != null) {
+			throw new VoteScanException("Received " + protocol + " instead of a vote");
+		}
+	}
+
+	/**
+	 * Peeks at the bytes already buffered on the stream, without blocking for
+	 * more, and rejects them if they belong to another protocol.
+	 *
+	 * @param in the payload stream; bytes read are pushed back
+	 * @throws VoteScanException if the payload is HTTP, TLS, SSH, Redis or
+	 *                           plain text
+	 */
+	public void checkForeignProtocol(PushbackInputStream in) throws IOException, VoteScanException {
+		int available = Math.min(ProtocolSniffer.SNIFF_LENGTH, in.available());
+		if (available <= 0) {
+			return;
+		}
+		byte[] header = new byte[available];
+		int bytesRead = in.read(header, 0, available);
+		if (bytesRead <= 0) {
+			return;
+		}
+		in.unread(header, 0, bytesRead);
+		checkForeignProtocol(header, bytesRead);
+	}
+
+	/**
+	 * Returns the number of bytes making up a complete V2 frame at the start of
+	 * the buffer, or {@code -1} if more data is needed. Framed payloads use the
+	 * magic/length header; bare JSON is complete once its outermost object is
+	 * closed.
+	 *
+	 * @param data   the payload buffer
+	 * @param length number of valid bytes in {@code data}
+	 * @return frame length in bytes, or -1 if the frame is incomplete
+	 * @throws InvalidVoteException if the frame declares or already exceeds
+	 *                              {@link #MAX_FRAME_SIZE}
+	 */
+	public int completeV2Frame(byte[] data, int length) throws InvalidVoteException {
+		if (isFramed(data, length)) {
+			if (length < 4) {
+				return -1;
+			}
+			int frameLength = 4 + (((data[2] & 0xFF) << 8) | (data[3] & 0xFF));
+			if (frameLength > MAX_FRAME_SIZE) {
+				throw new InvalidVoteException("V2 frame declares " + (frameLength - 4) + " bytes, limit is "
+						+ (MAX_FRAME_SIZE - 4));
+			}
+			return length >= frameLength ? frameLength : -1;
+		}
+
+		int depth = 0;
+		boolean inString = false;
+		boolean escaped = false;
+		for (int i = 0; i < length; i++) {
+			byte b = data[i];
+			if (inString) {
+				if (escaped) {
+					escaped = false;
+				} else if (b == '\\') {
+					escaped = true;
+				} else if (b == '"') {
+					inString = false;
+				}
+				continue;
+			}
+
+			if (b == '"' && depth > 0) {
+				inString = true;
+			} else if (b == '{') {
+				depth++;
+			} else if (b == '}' && depth > 0 && --depth == 0) {
+				return i + 1;
+			}
+		}
+		if (length >= MAX_FRAME_SIZE) {
+			throw new InvalidVoteException("V2 payload exceeds " + MAX_FRAME_SIZE + " bytes");
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads one complete vote frame from a blocking stream into {@code buffer}:
+	 * the 256-byte V1 block, or a V2 frame as delimited by
+	 * {@link #completeV2Frame(byte[], int)}. Reads block until the frame is
+	 * complete; the connection deadline bounds how long that may take.
+	 *
+	 * @param in      the stream, positioned at the start of the payload
+	 * @param version the detected protocol version
+	 * @param buffer  destination, at least {@link #MAX_FRAME_SIZE} bytes
+	 * @param address remote address string for logging/errors
+	 * @return frame length; for V1 less than 256 only if the peer closed early
+	 * @throws InvalidVoteException if a V2 frame is oversized or truncated
+	 */
+	public int readFrame(InputStream in, VoteProtocolVersion version, byte[] buffer, String address)
+			throws IOException, InvalidVoteException {
+		int length = 0;
+		if (version == VoteProtocolVersion.V1) {
+			while (length < V1_BLOCK_SIZE) {
+				int read = in.read(buffer, length, V1_BLOCK_SIZE - length);
+				if (read == -1) {
+					break;
+				}
+				length += read;
+			}
+			return length;
+		}
+
+		int limit = Math.min(buffer.length, MAX_FRAME_SIZE);
+		while (true) {
+			int read = in.read(buffer, length, limit - length);
+			if (read == -1) {
+				throw new InvalidVoteException("Incomplete V2 frame from " + address + " (connection closed after "
+						+ length + " bytes)");
+			}
+			length += read;
+
+			int frameLength = completeV2Frame(buffer, length);
+			if (frameLength > 0) {
+				return frameLength;
+			}
+		}
+	}
+
+	/**
+	 * Parses a buffered vote frame based on the detected protocol version.
+	 *
+	 * @param data      the payload buffer
+	 * @param length    number of valid bytes in {@code data}
 	 * @param version   the detected protocol version
 	 * @param receiver  the vote receiver
 	 * @param address   remote address string for logging/errors
-	 * @param challenge expected challenge for V2
+	 * @param challenge expected challenge for V2, or null if no handshake
+	 *                  challenge was sent
 	 * @return parsed vote request data
 	 * @throws Exception on parse/validation/authentication errors
 	 */
-	public VoteRequest parse(PushbackInputStream in, VoteProtocolVersion version, VoteReceiver receiver, String address,
-			String challenge) throws Exception {
+	public VoteRequest parse(byte[] data, int length, VoteProtocolVersion version, VoteReceiver receiver,
+			String address, String challenge) throws Exception {
 		if (version == VoteProtocolVersion.V1) {
-			return parseV1(in, receiver, address);
+			if (length < V1_BLOCK_SIZE) {
+				throw new InvalidVoteException("Failed to read complete V1 vote block from " + address
+						+ " (expected 256 bytes, got " + length + ")");
+			}
+			ReplayCache replays = receiver.getReplayCache();
+			long replayHash = checkReplay(replays, data, 0, V1_BLOCK_SIZE, "V1 vote block", address);
+			VoteRequest request;
+			try {
+				request = decodeV1(data, receiver, address);
+			} catch (GeneralSecurityException | InvalidVoteException ex) {
+				// The same block would fail the same way; turn copies away before the decrypt.
+				if (replays != null) {
+					replays.add(replayHash);
+				}
+				throw ex;
+			}
+			recordReplay(replays, replayHash, "V1 vote block", address);
+			return request;
+		}
+		if (challenge == null) {
+			throw new VoteAuthenticationException("V2 vote from " + address + " was not preceded by a challenge");
 		}
-		return parseV2(in, receiver, address, challenge);
-	}
-
-	private VoteRequest parseV1(PushbackInputStream in, VoteReceiver receiver, String address) throws Exception {
-		byte[] block = new byte[256];
-		int totalRead = 0;
 
-		while (totalRead < block.length) {
-			int read = in.read(block, totalRead, block.length - totalRead);
-			if (read == -1) {
-				break;
+		int offset = 0;
+		if (isFramed(data, length)) {
+			if (length < 4) {
+				throw new InvalidVoteException("Truncated V2 frame header from " + address);
 			}
-			totalRead += read;
+			offset = 4;
+			length = Math.min(length, offset + (((data[2] & 0xFF) << 8) | (data[3] & 0xFF)));
 		}
+		return decodeV2(data, offset, length - offset, receiver, address, challenge);
+	}
 
-		if (totalRead != 256) {
-			throw new InvalidVoteException("Failed to read complete V1 vote block from " + address
-					+ " (expected 256 bytes, got " + totalRead + ")");
-		}
+	private static boolean isFramed(byte[] data, int length) {
+		return length >= 2 && (short) (((data[0] & 0xFF) << 8) | (data[1] & 0xFF)) == PROTOCOL_2_MAGIC;
+	}
 
+	private VoteRequest decodeV1(byte[] data, VoteReceiver receiver, String address) throws Exception {
 		byte[] decrypted;
+		long stageStart = System.nanoTime();
+		if (decryptPermits != null) {
+			decryptPermits.acquire();
+		}
+		long decryptStart = System.nanoTime();
 		try {
-			decrypted = RSA.decrypt(block, receiver.getKeyPair().getPrivate());
+			decrypted = receiver.getDecryptCiphers().doFinal(data, 0, V1_BLOCK_SIZE);
 		} catch (BadPaddingException ex) {
 			throw ex;
+		} finally {
+			long decryptEnd = System.nanoTime();
+			receiver.recordDecryptTime(decryptEnd - decryptStart);
+			receiver.recordRsaStageTime(decryptEnd - stageStart);
+			if (decryptPermits != null) {
+				decryptPermits.release();
+			}
 		}
 
 		int position = 0;
@@ -149,19 +374,50 @@ public class VoteParser {
 		return request;
 	}
 
-	private VoteRequest parseV2(PushbackInputStream in, VoteReceiver receiver, String address, String challenge)
-			throws Exception {
-		ByteArrayOutputStream data = new ByteArrayOutputStream();
-		int b;
-		while ((b = in.read()) != -1) {
-			data.write(b);
-			if (in.available() == 0) {
-				break;
+	/**
+	 * Decodes a V2 envelope with {@link V2EnvelopeScanner}, checking the HMAC
+	 * and challenge against the raw payload bytes before any field becomes a
+	 * String. Envelopes the scanner does not handle go through Gson.
+	 */
+	private VoteRequest decodeV2(byte[] data, int offset, int length, VoteReceiver receiver, String address,
+			String challenge) throws Exception {
+		BufferPool buffers = receiver.getBufferPool();
+		byte[] scratch = buffers.acquire();
+		try {
+			V2EnvelopeScanner scanner = new V2EnvelopeScanner(scratch);
+			if (scanner.scan(data, offset, length)) {
+				ReplayCache replays = receiver.getReplayCache();
+				byte[] signature = scanner.getSignature();
+				long replayHash = checkReplay(replays, signature, 0, signature.length, "V2 signature", address);
+
+				String serviceName = scanner.value(V2EnvelopeScanner.SERVICE_NAME);
+				Mac mac = lookupToken(receiver, serviceName, address);
+
+				if (!hmacEqual(signature, scanner.getPayload(), scanner.getPayloadLength(), mac)) {
+					throw new VoteAuthenticationException("Signature verification failed (invalid token?) for service '"
+							+ serviceName + "' from " + address);
+				}
+
+				if (!scanner.valueEquals(V2EnvelopeScanner.CHALLENGE, challenge.trim())) {
+					throw new VoteAuthenticationException("Invalid challenge from " + address);
+				}
+				recordReplay(replays, replayHash, "V2 signature", address);
+
+				return new VoteRequest(serviceName, scanner.value(V2EnvelopeScanner.USERNAME),
+						scanner.value(V2EnvelopeScanner.ADDRESS), scanner.value(V2EnvelopeScanner.TIMESTAMP));
 			}
+		} finally {
+			buffers.release(scratch);
 		}
 
-		String voteData = data.toString("UTF-8").trim();
-		receiver.debug("Received raw V2 vote payload: [" + voteData + "]");
+		receiver.getVoteLog().debug(() -> "V2 payload from " + address + " needs the general JSON parser");
+		return decodeV2(new String(data, offset, length, StandardCharsets.UTF_8), receiver, address, challenge);
+	}
+
+	private VoteRequest decodeV2(String rawData, VoteReceiver receiver, String address, String challenge)
+			throws Exception {
+		String voteData = rawData.trim();
+		receiver.getVoteLog().debug(() -> "Received raw V2 vote payload: [" + rawData.trim() + "]");
 
 		int firstBrace = voteData.indexOf('{');
 		if (firstBrace > 0) {
@@ -175,7 +431,7 @@ public class VoteParser {
 		}
 
 		String jsonPayloadRaw = voteData.substring(jsonStart, jsonEnd + 1).trim();
-		receiver.debug("Extracted raw JSON payload: [" + jsonPayloadRaw + "]");
+		receiver.getVoteLog().debug(() -> "Extracted raw JSON payload: [" + jsonPayloadRaw + "]");
 
 		JsonObject voteMessage;
 		if (jsonPayloadRaw.startsWith("[")) {
@@ -222,20 +478,13 @@ public class VoteParser {
 		String timeStamp = requireString(votePayload, FIELD_TIMESTAMP, "Inner JSON from " + address + ": ");
 		String receivedChallenge = requireString(votePayload, FIELD_CHALLENGE, "Inner JSON from " + address + ": ");
 
-		Map<String, Key> tokens = receiver.getTokens();
-		Key key = tokens.get(serviceName);
-		if (key == null) {
-			key = tokens.get("default");
-			if (key == null) {
-				throw new VoteAuthenticationException(
-						"Unknown token for service '" + serviceName + "' from " + address);
-			}
-			receiver.debug("Using default token for service: " + serviceName);
-		} else {
-			receiver.debug("Using service-specific token for: " + serviceName);
-		}
+		ReplayCache replays = receiver.getReplayCache();
+		long replayHash = checkReplay(replays, providedSig, 0, providedSig.length, "V2 signature", address);
 
-		if (!hmacEqual(providedSig, payload.getBytes(StandardCharsets.UTF_8), key)) {
+		Mac mac = lookupToken(receiver, serviceName, address);
+
+		byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+		if (!hmacEqual(providedSig, payloadBytes, payloadBytes.length, mac)) {
 			throw new VoteAuthenticationException(
 					"Signature verification failed (invalid token?) for service '" + serviceName + "' from " + address);
 		}
@@ -243,11 +492,53 @@ public class VoteParser {
 		if (!receivedChallenge.equals(challenge.trim())) {
 			throw new VoteAuthenticationException("Invalid challenge from " + address);
 		}
+		recordReplay(replays, replayHash, "V2 signature", address);
 
 		VoteRequest request = new VoteRequest(serviceName, username, voteAddress, timeStamp);
 		return request;
 	}
 
+	/**
+	 * Rejects bytes already accepted within the replay window.
+	 *
+	 * @return the hash to record once the vote verifies, or 0 without a cache
+	 */
+	private static long checkReplay(ReplayCache replays, byte[] data, int offset, int length, String what,
+			String address) throws VoteReplayException {
+		if (replays == null) {
+			return 0;
+		}
+		long hash = replays.hash(data, offset, length);
+		if (replays.contains(hash)) {
+			throw new VoteReplayException("Duplicate " + what + " from " + address);
+		}
+		return hash;
+	}
+
+	private static void recordReplay(ReplayCache replays, long hash, String what, String address)
+			throws VoteReplayException {
+		if (replays != null && !replays.add(hash)) {
+			throw new VoteReplayException("Duplicate " + what + " from " + address);
+		}
+	}
+
+	private Mac lookupToken(VoteReceiver receiver, String serviceName, String address)
+			throws VoteAuthenticationException, GeneralSecurityException {
+		MacTable tokens = receiver.getTokenMacs();
+		Mac mac = tokens.get(serviceName);
+		if (mac == null) {
+			mac = tokens.get("default");
+			if (mac == null) {
+				throw new VoteAuthenticationException(
+						"Unknown token for service '" + serviceName + "' from " + address);
+			}
+			receiver.getVoteLog().debug(() -> "Using default token for service: " + serviceName);
+		} else {
+			receiver.getVoteLog().debug(() -> "Using service-specific token for: " + serviceName);
+		}
+		return mac;
+	}
+
 	private String requireString(JsonObject obj, String field, String errorPrefix) throws InvalidVoteException {
 		if (!obj.has(field)) {
 			throw new InvalidVoteException(errorPrefix + "missing field '" + field + "'");
@@ -278,10 +569,9 @@ public class VoteParser {
 		return builder.toString();
 	}
 
-	private boolean hmacEqual(byte[] providedSig, byte[] data, Key key) throws Exception {
-		Mac mac = Mac.getInstance("HmacSHA256");
-		mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
-		byte[] computed = mac.doFinal(data);
+	private boolean hmacEqual(byte[] providedSig, byte[] data, int length, Mac mac) {
+		mac.update(data, 0, length);
+		byte[] computed = mac.doFinal();
 
 		if (providedSig.length != computed.length) {
 			return false;
@@ -19,6 +19,7 @@
  */
 package com.vexsoftware.votifier.common.net;
 
+import java.nio.file.Path;
 import java.security.Key;
 import java.security.KeyPair;
 import java.util.Map;
@@ -48,5 +49,7 @@ public interface VotePlatform {
 	boolean isUseTokens();
 
 	ThrottleConfig getThrottleConfig();
+	ReceiverConfig getReceiverConfig();
+	Path getDataDirectory();
 	void callEvent(Vote vote);
 }
@@ -19,62 +19,146 @@
  */
 package com.vexsoftware.votifier.common.net;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPair;
+import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.crypto.Cipher;
 
 import com.vexsoftware.votifier.common.ForwardServer;
+import com.vexsoftware.votifier.common.crypto.ChallengeGenerator;
+import com.vexsoftware.votifier.common.crypto.CipherPool;
+import com.vexsoftware.votifier.common.crypto.MacTable;
 import com.vexsoftware.votifier.model.Vote;
 
 public abstract class VoteReceiver extends Thread {
 
+	private static final String THROTTLE_SNAPSHOT = "throttle-state.dat";
+
 	private final String host;
 	private final int port;
 
-	private ServerSocket server;
+	private volatile ReceiverConfig receiverConfig;
+
+	private final List<ServerSocket> servers = new ArrayList<ServerSocket>();
+
+	private final List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>();
+
+	private final List<NioVoteTransport> nioTransports = new CopyOnWriteArrayList<NioVoteTransport>();
 
 	private volatile boolean running = true;
 
 	private volatile VoteThrottleService throttleService;
 
+	private volatile AdmissionController admissionController;
+	private volatile OverloadController overloadController;
+	private volatile VoteLog voteLog;
+
+	private volatile DeadlineWheel deadlineWheel;
+	private volatile DeadlineWheel.Timeout snapshotTimer;
+	private volatile DeadlineWheel.Timeout poolSizingTimer;
+	private volatile ExecutorService snapshotExecutor;
+
 	private volatile VoteForwarder voteForwarder;
 
+	private final Semaphore decryptPermits;
+
+	private final BufferPool bufferPool;
+
+	private volatile ReplayCache replayCache;
+	private volatile ReplayCache recentVotes;
+	private final LongAdder duplicatesSuppressed = new LongAdder();
+
+	private volatile CipherPool decryptCiphers;
+	private final ConcurrentHashMap<String, CipherPool> encryptCiphers = new ConcurrentHashMap<String, CipherPool>();
+	private volatile MacTable tokenMacs;
+	private volatile MacTable forwardMacs;
+
 	private volatile ExecutorService connectionExecutor;
-	private volatile ExecutorService forwardExecutor;
+	private volatile AdaptiveThreadPool connectionPool;
+	private volatile AdaptiveThreadPool dispatchPool;
+	private volatile AdaptiveThreadPool forwardPool;
 
 	public VoteReceiver(String host, int port) throws Exception {
+		this(host, port, ReceiverConfig.defaults());
+	}
+
+	public VoteReceiver(String host, int port, ReceiverConfig receiverConfig) throws Exception {
 		super("Votifier I/O");
 		this.host = host;
 		this.port = port;
+		this.receiverConfig = receiverConfig == null ? ReceiverConfig.defaults() : receiverConfig;
+		this.decryptPermits = new Semaphore(this.receiverConfig.maxConcurrentDecrypts);
+		this.bufferPool = new BufferPool(VoteParser.MAX_FRAME_SIZE,
+				Math.max(16, this.receiverConfig.connectionWorkersMax * 2));
+		this.replayCache = newHashWindow(this.receiverConfig.replayWindowMs, this.receiverConfig.replayCapacity, null);
+		this.recentVotes = newHashWindow(this.receiverConfig.dedupWindowMs, this.receiverConfig.dedupCapacity, null);
 		setPriority(Thread.MIN_PRIORITY);
 		initialize();
 	}
 
-	public ServerSocket getServer() { return server; }
+	public ServerSocket getServer() { return servers.isEmpty() ? null : servers.get(0); }
+	public int getAcceptorCount() { return servers.size(); }
+	public ReceiverConfig getReceiverConfig() { return receiverConfig; }
+	public boolean isRunning() { return running; }
+	public Semaphore getDecryptPermits() { return decryptPermits; }
+	public BufferPool getBufferPool() { return bufferPool; }
+	public ReplayCache getReplayCache() { return replayCache; }
+	public AdaptiveThreadPool getConnectionPool() { return connectionPool; }
+	public AdaptiveThreadPool getDispatchPool() { return dispatchPool; }
+	public AdaptiveThreadPool getForwardPool() { return forwardPool; }
 	public VoteThrottleService getThrottleService() { return throttleService; }
+	public AdmissionController getAdmissionController() { return admissionController; }
+	public OverloadController getOverloadController() { return overloadController; }
+	public VoteLog getVoteLog() { return voteLog; }
+	public DeadlineWheel getDeadlineWheel() { return deadlineWheel; }
 	public VoteForwarder getVoteForwarder() { return voteForwarder; }
 
 	public void initialize() throws Exception {
+		int shards = receiverConfig.acceptorShards;
+		if (shards > 1 && !isReusePortSupported()) {
+			logWarning("SO_REUSEPORT is not supported on this platform, using a single vote acceptor.");
+			shards = 1;
+		}
+
 		try {
-			server = new ServerSocket();
-			server.bind(new InetSocketAddress(host, port));
-			debug("Bound to " + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort());
+			for (int i = 0; i < shards; i++) {
+				bind(shards > 1);
+			}
+			ServerSocket server = servers.get(0);
+			debug("Bound to " + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort()
+					+ (shards > 1 ? " with " + shards + " SO_REUSEPORT acceptors" : ""));
 		} catch (Exception ex) {
+			closeServers();
 			logSevere(
 					"Error initializing vote receiver. Please verify that the configured IP address and port are not already in use.");
 			ex.printStackTrace();
@@ -82,19 +166,156 @@ public abstract class VoteReceiver extends Thread {
 		}
 	}
 
-	public void shutdown() {
-		running = false;
+	private void bind(boolean reusePort) throws Exception {
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		if (receiverConfig.transport == ReceiverConfig.Transport.NIO) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			serverChannels.add(channel);
+			if (reusePort) {
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			channel.bind(address, receiverConfig.acceptBacklog);
+			channel.configureBlocking(false);
+			servers.add(channel.socket());
+		} else {
+			ServerSocket server = new ServerSocket();
+			servers.add(server);
+			if (reusePort) {
+				server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			server.bind(address, receiverConfig.acceptBacklog);
+		}
+	}
+
+	private static boolean isReusePortSupported() {
+		try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+			return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (Exception ex) {
+			return false;
+		}
+	}
 
-		if (server != null) {
+	private void closeServers() {
+		for (ServerSocket server : servers) {
 			try {
 				server.close();
 			} catch (Exception ex) {
 				logWarning("Unable to shut down vote receiver cleanly.");
 			}
 		}
+	}
+
+	/**
+	 * Applies changed configuration to the running receiver without touching
+	 * the listening sockets. Receivers that cannot reload return false and must
+	 * be shut down and recreated.
+	 *
+	 * @return true if the running receiver picked up the new configuration
+	 */
+	public boolean reload() {
+		return false;
+	}
+
+	/**
+	 * Whether the new settings can be applied in place. Changing host, port or
+	 * the socket/executor layout requires a new receiver.
+	 */
+	protected boolean canReload(String host, int port, ReceiverConfig config) {
+		return running && isAlive() && this.host.equals(host) && this.port == port
+				&& receiverConfig.isCompatible(config);
+	}
+
+	protected void applyReload(ReceiverConfig config) {
+		receiverConfig = config;
+
+		AdaptiveThreadPool pool = connectionPool;
+		if (pool != null) {
+			pool.setThreadBounds(config.connectionWorkersMin, config.connectionWorkersMax);
+		}
+		pool = dispatchPool;
+		if (pool != null) {
+			pool.setThreadBounds(config.dispatchWorkersMin, config.dispatchWorkersMax);
+		}
+		pool = forwardPool;
+		if (pool != null) {
+			pool.setThreadBounds(config.forwardWorkersMin, config.forwardWorkersMax);
+		}
+
+		VoteThrottleService throttle = throttleService;
+		if (throttle != null) {
+			throttle.updateConfig(getThrottleConfig());
+			warnInvalidNetworks(getThrottleConfig());
+		}
+		if (snapshotTimer == null) {
+			scheduleThrottleSnapshot();
+		}
+
+		replayCache = newHashWindow(config.replayWindowMs, config.replayCapacity, replayCache);
+		recentVotes = newHashWindow(config.dedupWindowMs, config.dedupCapacity, recentVotes);
+		decryptCiphers = null;
+		encryptCiphers.clear();
+		tokenMacs = null;
+		forwardMacs = null;
+		debug("Reloaded vote receiver configuration in place");
+	}
+
+	/**
+	 * Builds a replay or dedup window, keeping {@code existing} if its window
+	 * and capacity are unchanged.
+	 *
+	 * @return the cache, or null when the window is 0
+	 */
+	private static ReplayCache newHashWindow(long windowMs, int capacity, ReplayCache existing) {
+		if (windowMs <= 0) {
+			return null;
+		}
+		if (existing != null && existing.getWindowMs() == windowMs
+				&& existing.getCapacity() == Math.max(16, capacity)) {
+			return existing;
+		}
+		return new ReplayCache(windowMs, capacity);
+	}
+
+	/**
+	 * Carries tracked failures, throttles and bans over from a receiver that is
+	 * being replaced. Must be called before {@link #start()}.
+	 *
+	 * @param previous throttle service of the old receiver, may be null
+	 */
+	public void inheritThrottleService(VoteThrottleService previous) {
+		this.throttleService = previous;
+	}
+
+	public void shutdown() {
+		running = false;
+
+		closeServers();
+
+		for (NioVoteTransport transport : nioTransports) {
+			transport.wakeup();
+		}
 
 		shutdownExecutor(connectionExecutor, "connection");
-		shutdownExecutor(forwardExecutor, "forward");
+		shutdownExecutor(dispatchPool, "dispatch");
+		shutdownExecutor(forwardPool, "forward");
+
+		DeadlineWheel.Timeout timer = snapshotTimer;
+		if (timer != null) {
+			timer.cancel();
+		}
+		timer = poolSizingTimer;
+		if (timer != null) {
+			timer.cancel();
+		}
+		shutdownExecutor(snapshotExecutor, "snapshot");
+		saveThrottleSnapshot();
+
+		if (deadlineWheel != null) {
+			deadlineWheel.shutdown();
+		}
+		if (voteLog != null) {
+			voteLog.shutdown();
+		}
 	}
 
 	private void shutdownExecutor(ExecutorService executor, String name) {
@@ -117,73 +338,249 @@ public abstract class VoteReceiver extends Thread {
 	}
 
 	public int getConnectionWorkerCount() {
-		return 4;
+		return receiverConfig.connectionWorkersMin;
 	}
 
 	public int getForwardWorkerCount() {
-		return 1;
+		return receiverConfig.forwardWorkersMin;
 	}
 
-	@Override
-	public void run() {
-		throttleService = new VoteThrottleService(getThrottleConfig());
-		voteForwarder = new VoteForwarder(this);
+	/**
+	 * Records how long an RSA decrypt took so the connection pool can size
+	 * itself against CPU work rather than socket waits.
+	 *
+	 * @param nanos decrypt duration
+	 */
+	public void recordDecryptTime(long nanos) {
+		AdaptiveThreadPool pool = connectionPool;
+		if (pool != null) {
+			pool.recordWorkTime(nanos);
+		}
+	}
+
+	/**
+	 * Records how long a vote spent in the RSA stage, including the wait for a
+	 * decrypt permit, for overload detection.
+	 *
+	 * @param nanos stage duration
+	 */
+	public void recordRsaStageTime(long nanos) {
+		OverloadController overload = overloadController;
+		if (overload != null) {
+			overload.recordRsaStage(nanos);
+		}
+	}
+
+	private void warnInvalidNetworks(ThrottleConfig config) {
+		if (config == null) {
+			return;
+		}
+		for (String entry : config.getInvalidEntries()) {
+			logWarning("Ignoring invalid address or CIDR range in ConnectionThrottle: " + entry);
+		}
+	}
+
+	private Path getThrottleSnapshotFile() {
+		Path directory = getDataDirectory();
+		return directory == null ? null : directory.resolve(THROTTLE_SNAPSHOT);
+	}
 
-		connectionExecutor = Executors.newFixedThreadPool(getConnectionWorkerCount(), new ThreadFactory() {
-			private int id = 1;
+	private void loadThrottleSnapshot(VoteThrottleService throttle) {
+		ThrottleConfig config = getThrottleConfig();
+		Path file = getThrottleSnapshotFile();
+		if (config == null || config.snapshotIntervalMs <= 0 || file == null) {
+			return;
+		}
+		try {
+			int restored = throttle.loadSnapshot(file);
+			if (restored > 0) {
+				log("Restored " + restored + " throttled addresses and subnets from " + file.getFileName());
+			}
+		} catch (IOException ex) {
+			logWarning("Unable to load throttle snapshot: " + ex.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Writes active throttles and bans to the snapshot file, if snapshots are
+	 * enabled. Runs periodically and on shutdown.
+	 */
+	public void saveThrottleSnapshot() {
+		VoteThrottleService throttle = throttleService;
+		ThrottleConfig config = getThrottleConfig();
+		Path file = getThrottleSnapshotFile();
+		if (throttle == null || config == null || config.snapshotIntervalMs <= 0 || file == null) {
+			return;
+		}
+		try {
+			int saved = throttle.saveSnapshot(file);
+			debug("Saved " + saved + " throttle entries to " + file.getFileName());
+		} catch (IOException ex) {
+			logWarning("Unable to save throttle snapshot: " + ex.getLocalizedMessage());
+		}
+	}
 
+	/**
+	 * Arms the next periodic snapshot. The timer thread must not block, so the
+	 * write itself runs on the snapshot thread, where disk I/O never delays
+	 * vote events.
+	 */
+	private void scheduleThrottleSnapshot() {
+		ThrottleConfig config = getThrottleConfig();
+		DeadlineWheel wheel = deadlineWheel;
+		final ExecutorService executor = snapshotExecutor;
+		if (!running || wheel == null || executor == null || config == null || config.snapshotIntervalMs <= 0) {
+			snapshotTimer = null;
+			return;
+		}
+		snapshotTimer = wheel.scheduleTimer(config.snapshotIntervalMs, new Runnable() {
 			@Override
-			public Thread newThread(Runnable r) {
-				Thread thread = new Thread(r, "Votifier-Connection-" + id++);
-				thread.setDaemon(true);
-				return thread;
+			public void run() {
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							saveThrottleSnapshot();
+							scheduleThrottleSnapshot();
+						}
+					});
+				} catch (RejectedExecutionException ex) {
+					scheduleThrottleSnapshot();
+				}
 			}
 		});
+	}
 
-		forwardExecutor = Executors.newFixedThreadPool(getForwardWorkerCount(), new ThreadFactory() {
+	/**
+	 * Re-arms the periodic pool sizing check, so worker pools grown for a burst
+	 * shrink back to their minimum even when no task finishes.
+	 */
+	private void schedulePoolSizing() {
+		DeadlineWheel wheel = deadlineWheel;
+		if (!running || wheel == null) {
+			poolSizingTimer = null;
+			return;
+		}
+		poolSizingTimer = wheel.scheduleTimer(AdaptiveThreadPool.TICK_INTERVAL_MS, new Runnable() {
 			@Override
-			public Thread newThread(Runnable r) {
-				Thread thread = new Thread(r, "Votifier-Forwarder");
+			public void run() {
+				for (AdaptiveThreadPool pool : new AdaptiveThreadPool[] { connectionPool, dispatchPool, forwardPool }) {
+					if (pool != null) {
+						pool.tick();
+					}
+				}
+				schedulePoolSizing();
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		if (throttleService == null) {
+			throttleService = new VoteThrottleService(getThrottleConfig());
+			loadThrottleSnapshot(throttleService);
+		} else {
+			throttleService.updateConfig(getThrottleConfig());
+		}
+		warnInvalidNetworks(getThrottleConfig());
+		voteLog = new VoteLog(this, throttleService);
+		overloadController = new OverloadController(this);
+		admissionController = new AdmissionController(this, throttleService);
+		deadlineWheel = new DeadlineWheel(this, 100L);
+		voteForwarder = new VoteForwarder(this);
+
+		if (receiverConfig.execution == ReceiverConfig.Execution.VIRTUAL) {
+			connectionExecutor = Executors
+					.newThreadPerTaskExecutor(Thread.ofVirtual().name("Votifier-Connection-", 1).factory());
+			debug("Running vote connections on virtual threads (max " + receiverConfig.maxConcurrentDecrypts
+					+ " concurrent decrypts)");
+		} else {
+			connectionPool = new AdaptiveThreadPool("Votifier-Connection", receiverConfig.connectionWorkersMin,
+					receiverConfig.connectionWorkersMax, receiverConfig.connectionQueue);
+			connectionExecutor = connectionPool;
+		}
+
+		dispatchPool = new AdaptiveThreadPool("Votifier-Dispatch", receiverConfig.dispatchWorkersMin,
+				receiverConfig.dispatchWorkersMax, receiverConfig.dispatchQueue);
+		forwardPool = new AdaptiveThreadPool("Votifier-Forwarder", receiverConfig.forwardWorkersMin,
+				receiverConfig.forwardWorkersMax, receiverConfig.forwardQueue);
+		snapshotExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "Votifier Snapshot");
 				thread.setDaemon(true);
 				return thread;
 			}
 		});
+		scheduleThrottleSnapshot();
+		schedulePoolSizing();
 
 		final VoteConnectionHandler handler = new VoteConnectionHandler(this, throttleService);
 
+		for (int i = 1; i < servers.size(); i++) {
+			final int shard = i;
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					accept(shard, handler);
+				}
+			}, "Votifier I/O #" + (shard + 1));
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		accept(0, handler);
+	}
+
+	private void accept(int shard, final VoteConnectionHandler handler) {
+		if (!serverChannels.isEmpty()) {
+			NioVoteTransport transport;
+			try {
+				transport = new NioVoteTransport(this, handler, serverChannels.get(shard), connectionExecutor);
+			} catch (Exception ex) {
+				logSevere("Unable to open selector for vote receiver: " + ex.getLocalizedMessage());
+				return;
+			}
+			nioTransports.add(transport);
+			debug("Using non-blocking vote transport");
+			transport.run();
+			return;
+		}
+
+		ServerSocket server = servers.get(shard);
 		while (running) {
 			try {
 				final Socket socket = server.accept();
+				final String remoteIp = socket.getInetAddress().getHostAddress();
+
+				if (!admissionController.admit(remoteIp)) {
+					closeQuietly(socket);
+					continue;
+				}
 
-				connectionExecutor.submit(new Runnable() {
-					@Override
-					public void run() {
-						try {
-							Vote vote = handler.handle(socket);
-							if (vote != null) {
-								callEvent(vote);
-
-								final Vote forwardVote = vote;
-								forwardExecutor.submit(new Runnable() {
-									@Override
-									public void run() {
-										try {
-											voteForwarder.forwardVote(forwardVote);
-										} catch (Exception ex) {
-											logWarning("Error forwarding vote: "
-													+ (ex.getLocalizedMessage() == null ? ex.getClass().getSimpleName()
-															: ex.getLocalizedMessage()));
-										}
-									}
-								});
+				try {
+					connectionExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								Vote vote = handler.handle(socket);
+								if (vote != null) {
+									dispatch(vote);
+								}
+							} catch (Exception ex) {
+								logWarning("Error processing vote connection: "
+										+ (ex.getLocalizedMessage() == null ? ex.getClass().getSimpleName()
+												: ex.getLocalizedMessage()));
+							} finally {
+								admissionController.release(remoteIp);
 							}
-						} catch (Exception ex) {
-							logWarning("Error processing vote connection: "
-									+ (ex.getLocalizedMessage() == null ? ex.getClass().getSimpleName()
-											: ex.getLocalizedMessage()));
 						}
-					}
-				});
+					});
+				} catch (RejectedExecutionException ex) {
+					admissionController.release(remoteIp);
+					rejectConnection(remoteIp);
+					closeQuietly(socket);
+				}
 			} catch (SocketException ex) {
 				if (running) {
 					logWarning("Connection error while accepting vote socket: " + ex.getLocalizedMessage());
@@ -198,10 +595,205 @@ public abstract class VoteReceiver extends Thread {
 		}
 	}
 
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (Exception ignored) {
+		}
+	}
+
+	/**
+	 * Hands a verified, already acknowledged vote to the dispatch stage, which
+	 * fires the platform event and then queues the vote for forwarding. The
+	 * connection worker returns straight away, so a slow event handler never
+	 * holds up verification of the next vote.
+	 *
+	 * @param vote the verified vote
+	 */
+	public void dispatch(final Vote vote) {
+		if (isDuplicate(vote)) {
+			duplicatesSuppressed.increment();
+			getVoteLog().debug(() -> "Suppressed duplicate delivery of " + vote);
+			return;
+		}
+
+		try {
+			dispatchPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					deliver(vote);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			if (receiverConfig.dispatchOverflow == ReceiverConfig.Overflow.RUN) {
+				deliver(vote);
+			} else {
+				getVoteLog().warn(LogTopic.DISPATCH_QUEUE, () -> "Dispatch queue full ("
+						+ dispatchPool.getQueueDepth() + " pending), dropped " + vote);
+			}
+		}
+	}
+
+	/**
+	 * Whether the same service, username and timestamp was already dispatched
+	 * within the dedup window. Test votes are never suppressed.
+	 */
+	private boolean isDuplicate(Vote vote) {
+		ReplayCache recent = recentVotes;
+		if (recent == null || "TestVote".equalsIgnoreCase(vote.getTimeStamp())) {
+			return false;
+		}
+		byte[] key = (vote.getServiceName() + '\n' + vote.getUsername() + '\n' + vote.getTimeStamp())
+				.getBytes(StandardCharsets.UTF_8);
+		return !recent.add(recent.hash(key, 0, key.length));
+	}
+
+	private void deliver(Vote vote) {
+		try {
+			callEvent(vote);
+		} catch (Exception ex) {
+			logWarning("Error dispatching vote: "
+					+ (ex.getLocalizedMessage() == null ? ex.getClass().getSimpleName() : ex.getLocalizedMessage()));
+		}
+
+		if (getServers().isEmpty()) {
+			return;
+		}
+
+		try {
+			forwardPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					forward(vote);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			if (receiverConfig.forwardOverflow == ReceiverConfig.Overflow.RUN) {
+				forward(vote);
+			} else {
+				getVoteLog().warn(LogTopic.FORWARD_QUEUE, () -> "Forward queue full ("
+						+ forwardPool.getQueueDepth() + " pending), dropped forwarding of " + vote);
+			}
+		}
+	}
+
+	private void forward(Vote vote) {
+		try {
+			voteForwarder.forwardVote(vote);
+		} catch (Exception ex) {
+			logWarning("Error forwarding vote: "
+					+ (ex.getLocalizedMessage() == null ? ex.getClass().getSimpleName() : ex.getLocalizedMessage()));
+		}
+	}
+
+	/**
+	 * Describes the receiver's worker pools and queues for the stats command.
+	 *
+	 * @return one human-readable line per metric group
+	 */
+	public List<String> getStats() {
+		List<String> lines = new ArrayList<String>();
+		lines.add("Transport: " + receiverConfig.transport + " (" + servers.size() + " acceptor"
+				+ (servers.size() == 1 ? "" : "s") + "), execution: " + receiverConfig.execution
+				+ ", decrypts running: " + (receiverConfig.maxConcurrentDecrypts - decryptPermits.availablePermits())
+				+ "/" + receiverConfig.maxConcurrentDecrypts + ", frame buffers pooled " + bufferPool.getPooledCount()
+				+ " (" + bufferPool.getAllocatedCount() + " allocated)");
+		ReplayCache replays = replayCache;
+		if (replays != null) {
+			lines.add("Replay cache: " + replays.getSize() + " hashes remembered (up to " + replays.getCapacity()
+					+ " per " + (replays.getWindowMs() / 1000) + "s window)");
+		}
+		ReplayCache recent = recentVotes;
+		if (recent != null) {
+			lines.add("Duplicate votes suppressed: " + duplicatesSuppressed.sum() + " (" + recent.getSize()
+					+ " recent votes remembered over " + (recent.getWindowMs() / 1000) + "s)");
+		}
+		AdmissionController admission = admissionController;
+		if (admission != null) {
+			lines.add("Admission: admitted " + admission.getAdmittedCount() + ", rejected throttled "
+					+ admission.getRejectedThrottledCount() + ", denied " + admission.getRejectedDeniedCount()
+					+ ", over accept rate " + admission.getRejectedRateCount()
+					+ ", over per-IP limit " + admission.getRejectedPerIpCount() + ", open peers "
+					+ admission.getTrackedAddressCount());
+		}
+		OverloadController overload = overloadController;
+		if (overload != null) {
+			lines.add("Overload: " + (overload.isOverloaded() ? "shedding" : "normal") + " (connection queue "
+					+ overload.getQueueDepth() + ", RSA stage " + overload.getRsaStageMs() + "ms), overloaded "
+					+ overload.getOverloadCount() + " times, shed " + overload.getShedCount() + " connections, "
+					+ overload.getKnownSourceCount() + " known vote sources");
+		}
+		VoteThrottleService throttle = throttleService;
+		if (throttle != null) {
+			StringJoiner failures = new StringJoiner(", ", "Failures: ", "");
+			for (ThrottleFailure failure : ThrottleFailure.values()) {
+				failures.add(failure.getLabel() + " " + throttle.getFailureCount(failure));
+			}
+			DeadlineWheel wheel = deadlineWheel;
+			lines.add(failures + (wheel == null ? "" : " (deadlines expired " + wheel.getExpiredCount() + ")"));
+			IpStateMap<?> states = throttle.getThrottleStates();
+			IpStateMap<?> subnets = throttle.getSubnetStates();
+			IpStateMap<?> logs = voteLog == null ? subnets : voteLog.getAddressStates();
+			lines.add("Throttle state: " + states.size() + "/" + states.getMaxEntries() + " addresses, "
+					+ subnets.size() + " subnets, " + logs.size() + "/" + logs.getMaxEntries() + " logged addresses, ~"
+					+ (states.getEstimatedBytes() + subnets.getEstimatedBytes() + logs.getEstimatedBytes()) / 1024 + " KiB, expired "
+					+ (states.getExpiredCount() + subnets.getExpiredCount() + logs.getExpiredCount()) + ", evicted "
+					+ (states.getEvictedCount() + subnets.getEvictedCount() + logs.getEvictedCount()));
+			IpStateMap<?> addressBuckets = throttle.getAddressBuckets();
+			ExpiringStateMap<?> serviceBuckets = throttle.getServiceBuckets();
+			lines.add("Vote rate limit: dropped " + throttle.getAddressVotesLimitedCount() + " per address ("
+					+ addressBuckets.size() + " buckets), " + throttle.getServiceVotesLimitedCount()
+					+ " per service (" + serviceBuckets.size() + " buckets)");
+		}
+		if (connectionPool != null) {
+			lines.add(describePool(connectionPool));
+		}
+		if (dispatchPool != null) {
+			lines.add(describePool(dispatchPool) + ", overflow " + describe(receiverConfig.dispatchOverflow));
+		}
+		if (forwardPool != null) {
+			lines.add(describePool(forwardPool) + ", overflow " + describe(receiverConfig.forwardOverflow));
+		}
+		return lines;
+	}
+
+	private static String describe(ReceiverConfig.Overflow overflow) {
+		return overflow == ReceiverConfig.Overflow.RUN ? "runs inline" : "drops";
+	}
+
+	private String describePool(AdaptiveThreadPool pool) {
+		String line = String.format("%s: threads %d (%d-%d), active %d, queue %d/%d, rejected %d, completed %d, "
+				+ "avg wait %.1fms, avg task %.1fms", pool.getName(), pool.getPoolSize(), pool.getMinThreads(),
+				pool.getMaxThreads(), pool.getActiveCount(), pool.getQueueDepth(), pool.getQueueCapacity(),
+				pool.getRejectedCount(), pool.getCompletedCount(), pool.getAverageQueueWaitMs(),
+				pool.getAverageTaskMs());
+		if (pool.getAverageWorkMs() > 0) {
+			line += String.format(", avg decrypt %.1fms", pool.getAverageWorkMs());
+		}
+		return line;
+	}
+
+	/**
+	 * Called when the connection pool is saturated and a socket is closed
+	 * without being served.
+	 *
+	 * @param remoteIp remote IP address
+	 */
+	public void rejectConnection(String remoteIp) {
+		AdaptiveThreadPool pool = connectionPool;
+		getVoteLog().warn(LogTopic.CONNECTION_QUEUE, () -> "Connection queue full ("
+				+ (pool == null ? 0 : pool.getQueueDepth()) + " pending), rejected connection from " + remoteIp);
+	}
+
 	public abstract boolean isUseTokens();
 
 	public abstract ThrottleConfig getThrottleConfig();
 
+	/**
+	 * @return the plugin data folder, or null to keep no files
+	 */
+	public abstract Path getDataDirectory();
+
 	public abstract void logWarning(String warn);
 
 	public abstract void logSevere(String msg);
@@ -210,6 +802,14 @@ public abstract class VoteReceiver extends Thread {
 
 	public abstract void debug(String msg);
 
+	/**
+	 * Whether {@link #debug(String)} writes anything, so callers can skip
+	 * building debug messages.
+	 */
+	public boolean isDebug() {
+		return true;
+	}
+
 	public abstract void debug(Exception e);
 
 	public abstract String getVersion();
@@ -230,6 +830,70 @@ public abstract class VoteReceiver extends Thread {
 		return cipher.doFinal(data);
 	}
 
+	/**
+	 * Encrypts a V1 vote block for a forward destination using a cipher pool
+	 * cached per destination key.
+	 */
+	public byte[] encrypt(byte[] data, ForwardServer forwardServer) throws Exception {
+		CipherPool pool = encryptCiphers.get(forwardServer.getKey());
+		if (pool == null) {
+			pool = new CipherPool(Cipher.ENCRYPT_MODE, getPublicKey(forwardServer), receiverConfig.forwardWorkersMax);
+			CipherPool existing = encryptCiphers.putIfAbsent(forwardServer.getKey(), pool);
+			if (existing != null) {
+				pool = existing;
+			}
+		}
+		return pool.doFinal(data, 0, data.length);
+	}
+
+	/**
+	 * Returns the pool of decrypt ciphers for the current private key, creating
+	 * a new one when the key pair has been replaced.
+	 */
+	public CipherPool getDecryptCiphers() {
+		PrivateKey key = getKeyPair().getPrivate();
+		CipherPool pool = decryptCiphers;
+		if (pool == null || pool.getKey() != key) {
+			pool = new CipherPool(Cipher.DECRYPT_MODE, key, receiverConfig.maxConcurrentDecrypts);
+			decryptCiphers = pool;
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns HMAC engines for the V2 tokens, rebuilt when the token map has
+	 * been replaced by a reload.
+	 */
+	public MacTable getTokenMacs() throws GeneralSecurityException {
+		Map<String, Key> tokens = getTokens();
+		MacTable table = tokenMacs;
+		if (table == null || table.getTokens() != tokens) {
+			table = new MacTable(tokens);
+			tokenMacs = table;
+		}
+		return table;
+	}
+
+	/**
+	 * Returns HMAC engines for the forward servers' tokens, keyed by server
+	 * name. Rebuilt after a reload.
+	 */
+	public MacTable getForwardMacs() throws GeneralSecurityException {
+		MacTable table = forwardMacs;
+		if (table == null) {
+			Map<String, Key> tokens = new HashMap<String, Key>();
+			for (String name : getServers()) {
+				ForwardServer server = getServerData(name);
+				if (server != null) {
+					tokens.put(name, server.getToken());
+				}
+			}
+			table = new MacTable(tokens);
+			forwardMacs = table;
+		}
+		return table;
+	}
+
 	public PublicKey getPublicKey(ForwardServer forwardServer) throws Exception {
 		byte[] encoded = Base64.getDecoder().decode(forwardServer.getKey());
 		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
@@ -237,6 +901,6 @@ public abstract class VoteReceiver extends Thread {
 	}
 
 	public String getChallenge() {
-		return com.vexsoftware.votifier.common.crypto.TokenUtil.newToken();
+		return ChallengeGenerator.next();
 	}
 }
@@ -19,130 +19,371 @@
  */
 package com.vexsoftware.votifier.common.net;
 
+import java.io.IOException;
 import java.net.SocketException;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class VoteThrottleService {
 
-	private static final class LogState {
-		private volatile long lastLogMs;
-		private volatile int suppressed;
+	/**
+	 * Per-key failure tracking, updated with CAS so concurrent failures from
+	 * one address are never lost. {@code window} packs the window start (ms,
+	 * upper 44 bits) with the failure count (lower 20 bits, saturating);
+	 * {@code blockedUntilMs} is the later of any throttle or ban.
+	 */
+	private static final class ThrottleState {
+		private static final int COUNT_BITS = 20;
+		private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+		private final AtomicLong window = new AtomicLong();
+		private final AtomicLong blockedUntilMs = new AtomicLong();
+
+		private ThrottleState(long nowMs) {
+			window.set(pack(nowMs, 0));
+		}
+
+		private ThrottleState(long packedWindow, long blockedUntilMs) {
+			this.window.set(packedWindow);
+			this.blockedUntilMs.set(blockedUntilMs);
+		}
+
+		private static long pack(long startMs, int failures) {
+			return startMs << COUNT_BITS | failures;
+		}
+
+		private long windowStartMs() {
+			return window.get() >>> COUNT_BITS;
+		}
+
+		/**
+		 * Counts {@code weight} failures, starting a new window if the current
+		 * one is older than {@code windowMs}.
+		 *
+		 * @return failures in the window including these
+		 */
+		private int fail(long nowMs, long windowMs, int weight) {
+			while (true) {
+				long current = window.get();
+				long start = current >>> COUNT_BITS;
+				int failures = (int) (current & COUNT_MASK);
+				long next = nowMs - start > windowMs ? pack(nowMs, (int) Math.min(COUNT_MASK, weight))
+						: pack(start, (int) Math.min(COUNT_MASK, (long) failures + weight));
+				if (window.compareAndSet(current, next)) {
+					return (int) (next & COUNT_MASK);
+				}
+			}
+		}
+
+		private void reset(long nowMs) {
+			window.set(pack(nowMs, 0));
+		}
+
+		private void blockUntil(long untilMs) {
+			blockedUntilMs.accumulateAndGet(untilMs, Math::max);
+		}
 	}
 
-	private static final class ThrottleState {
-		private volatile long windowStartMs;
-		private volatile int failures;
-		private volatile long throttledUntilMs;
-		private volatile long bannedUntilMs;
+	/**
+	 * Token bucket for accepted votes, held as the single time (microseconds) at which
+	 * the bucket is full again. Each vote pushes that time one refill interval
+	 * further out and is refused if it would land more than {@code burst}
+	 * intervals ahead of now, so refilling happens implicitly on lookup.
+	 */
+	private static final class VoteBucket {
+		private final AtomicLong fullAtUs = new AtomicLong();
+
+		private boolean tryAcquire(long nowUs, long intervalUs, int burst) {
+			long limit = nowUs + intervalUs * burst;
+			while (true) {
+				long current = fullAtUs.get();
+				long next = Math.max(current, nowUs) + intervalUs;
+				if (next > limit) {
+					return false;
+				}
+				if (fullAtUs.compareAndSet(current, next)) {
+					return true;
+				}
+			}
+		}
 	}
 
-	private final ThrottleConfig config;
-	private final ConcurrentHashMap<String, LogState> logStates = new ConcurrentHashMap<String, LogState>();
-	private final ConcurrentHashMap<String, ThrottleState> throttleStates = new ConcurrentHashMap<String, ThrottleState>();
+	/**
+	 * Loopback and private ranges. A vote from one of these was almost always
+	 * forwarded by a proxy on the same network, carrying every vote for it.
+	 */
+	private static final CidrTrie LOCAL_NETWORKS = new CidrTrie(Arrays.asList("127.0.0.0/8", "10.0.0.0/8",
+			"172.16.0.0/12", "192.168.0.0/16", "::1/128", "fc00::/7", "fe80::/10"));
+
+	private volatile ThrottleConfig config;
+	private final IpStateMap<ThrottleState> throttleStates;
+	private final IpStateMap<ThrottleState> subnetStates;
+	private final IpStateMap<VoteBucket> addressBuckets;
+	private final ExpiringStateMap<VoteBucket> serviceBuckets;
+	private final LongAdder addressVotesLimited = new LongAdder();
+	private final LongAdder serviceVotesLimited = new LongAdder();
+	private final Map<ThrottleFailure, LongAdder> failureCounts = new EnumMap<ThrottleFailure, LongAdder>(
+			ThrottleFailure.class);
 
 	public VoteThrottleService(ThrottleConfig config) {
 		this.config = config;
+		int maxEntries = config == null ? ThrottleConfig.DEFAULT_MAX_TRACKED : config.maxTracked;
+		this.throttleStates = new IpStateMap<ThrottleState>(maxEntries, 72, this::expiresAt);
+		this.subnetStates = new IpStateMap<ThrottleState>(maxEntries, 72, this::expiresAt);
+		this.addressBuckets = new IpStateMap<VoteBucket>(maxEntries, 40, this::expiresAt);
+		this.serviceBuckets = new ExpiringStateMap<VoteBucket>(maxEntries, 40, this::expiresAt);
+		for (ThrottleFailure failure : ThrottleFailure.values()) {
+			failureCounts.put(failure, new LongAdder());
+		}
 	}
 
 	public ThrottleConfig getConfig() {
 		return config;
 	}
 
+	/**
+	 * Applies new throttle settings while keeping all tracked failures, throttles
+	 * and bans.
+	 *
+	 * @param config the new settings
+	 */
+	public void updateConfig(ThrottleConfig config) {
+		this.config = config;
+		if (config != null) {
+			throttleStates.setMaxEntries(config.maxTracked);
+			subnetStates.setMaxEntries(config.maxTracked);
+			addressBuckets.setMaxEntries(config.maxTracked);
+			serviceBuckets.setMaxEntries(config.maxTracked);
+		}
+	}
+
 	public boolean isTunnelMode(String remoteIp) {
-		return config != null && config.enabled && config.tunnelRemoteIps.contains(remoteIp);
+		ThrottleConfig config = this.config;
+		return config != null && config.enabled && config.tunnelNetworks.contains(remoteIp);
 	}
 
-	public boolean isBlocked(String key) {
-		if (config == null || !config.enabled) {
-			return false;
-		}
+	/**
+	 * Whether connections from this address start with a PROXY protocol header
+	 * naming the real client. Only configured tunnel endpoints are trusted, and
+	 * this applies even when throttling itself is disabled.
+	 *
+	 * @param remoteIp socket remote IP address
+	 * @return true if a PROXY header is expected
+	 */
+	public boolean isProxyTrusted(String remoteIp) {
+		ThrottleConfig config = this.config;
+		return config != null && config.proxyProtocol && config.tunnelNetworks.contains(remoteIp);
+	}
+
+	/**
+	 * Whether the address is on the DenyList. Applies even when throttling
+	 * itself is disabled.
+	 */
+	public boolean isDenied(String remoteIp) {
+		ThrottleConfig config = this.config;
+		return config != null && !config.denyList.isEmpty() && config.denyList.contains(remoteIp);
+	}
+
+	/**
+	 * Whether the address is on the AllowList and therefore never throttled
+	 * or banned.
+	 */
+	public boolean isAllowed(String remoteIp) {
+		ThrottleConfig config = this.config;
+		return config != null && !config.allowList.isEmpty() && config.allowList.contains(remoteIp);
+	}
 
-		ThrottleState state = throttleStates.get(key);
-		if (state == null) {
+	/**
+	 * Whether the address, or the subnet it belongs to, is currently
+	 * throttled or banned.
+	 */
+	public boolean isBlocked(String remoteIp) {
+		ThrottleConfig config = this.config;
+		if (config == null || !config.enabled || isAllowed(remoteIp)) {
 			return false;
 		}
 
-		long now = System.currentTimeMillis();
-		return state.bannedUntilMs > now || state.throttledUntilMs > now;
+		return blockedUntilMs(config, remoteIp) > System.currentTimeMillis();
 	}
 
-	public long retryAfterMs(String key) {
-		ThrottleState state = throttleStates.get(key);
-		if (state == null) {
+	public long retryAfterMs(String remoteIp) {
+		ThrottleConfig config = this.config;
+		if (config == null) {
 			return 0L;
 		}
+		return blockedUntilMs(config, remoteIp) - System.currentTimeMillis();
+	}
 
-		long now = System.currentTimeMillis();
-		return Math.max(state.bannedUntilMs, state.throttledUntilMs) - now;
+	private long blockedUntilMs(ThrottleConfig config, String remoteIp) {
+		long hi = IpAddresses.high(remoteIp);
+		long lo = IpAddresses.low(remoteIp);
+		ThrottleState state = throttleStates.get(hi, lo);
+		long until = state == null ? 0L : state.blockedUntilMs.get();
+		if (config.subnetFailures > 0) {
+			int prefix = subnetPrefix(config, hi, lo);
+			ThrottleState subnet = subnetStates.get(IpAddresses.maskHigh(hi, prefix), IpAddresses.maskLow(lo, prefix));
+			if (subnet != null) {
+				until = Math.max(until, subnet.blockedUntilMs.get());
+			}
+		}
+		return until;
+	}
+
+	/**
+	 * @return the aggregate prefix length for an address, in
+	 *         {@link IpAddresses} bits
+	 */
+	private static int subnetPrefix(ThrottleConfig config, long hi, long lo) {
+		return IpAddresses.isV4(hi, lo) ? 96 + config.subnetV4Prefix : config.subnetV6Prefix;
 	}
 
-	public void fail(String key, boolean tunnelMode, boolean realIpKnown) {
-		if (config == null || !config.enabled) {
+	public void fail(String remoteIp, ThrottleFailure failure, boolean tunnelMode, boolean realIpKnown) {
+		failureCounts.get(failure).increment();
+
+		ThrottleConfig config = this.config;
+		if (config == null || !config.enabled || isAllowed(remoteIp)) {
 			return;
 		}
 
 		long now = System.currentTimeMillis();
-		ThrottleState state = getThrottleState(key);
-
-		if (now - state.windowStartMs > config.windowMs) {
-			state.windowStartMs = now;
-			state.failures = 0;
-		}
+		long hi = IpAddresses.high(remoteIp);
+		long lo = IpAddresses.low(remoteIp);
+		// A port scan is certain to be hostile, unlike a mistyped key or a timeout.
+		int weight = failure == ThrottleFailure.SCAN ? config.scanWeight : 1;
+		ThrottleState state = throttleStates.getOrCreate(hi, lo, () -> new ThrottleState(now));
+		int failures = state.fail(now, config.windowMs, weight);
 
-		state.failures++;
+		if (config.perClientBanEnabled && realIpKnown && failures >= config.perClientBanFailures) {
+			state.blockUntil(now + config.perClientBanForMs);
+		} else {
+			int threshold = tunnelMode ? config.tunnelFailures : config.failures;
+			long duration = tunnelMode ? config.tunnelThrottleForMs : config.throttleForMs;
 
-		if (config.perClientBanEnabled && realIpKnown && state.failures >= config.perClientBanFailures) {
-			state.bannedUntilMs = now + config.perClientBanForMs;
-			return;
+			if (failures >= threshold) {
+				state.blockUntil(now + duration);
+			}
 		}
 
-		int threshold = tunnelMode ? config.tunnelFailures : config.failures;
-		long duration = tunnelMode ? config.tunnelThrottleForMs : config.throttleForMs;
-
-		if (state.failures >= threshold) {
-			state.throttledUntilMs = now + duration;
+		// A tunnel endpoint's neighbours are unrelated to the clients behind it.
+		if (config.subnetFailures > 0 && (!tunnelMode || realIpKnown)) {
+			int prefix = subnetPrefix(config, hi, lo);
+			ThrottleState subnet = subnetStates.getOrCreate(IpAddresses.maskHigh(hi, prefix),
+					IpAddresses.maskLow(lo, prefix), () -> new ThrottleState(now));
+			if (subnet.fail(now, config.windowMs, weight) >= config.subnetFailures) {
+				subnet.blockUntil(now + config.throttleForMs);
+			}
 		}
 	}
 
-	public void success(String key) {
-		ThrottleState state = throttleStates.get(key);
+	public void success(String remoteIp) {
+		ThrottleState state = throttleStates.get(remoteIp);
 		if (state != null) {
-			state.failures = 0;
-			state.windowStartMs = System.currentTimeMillis();
+			state.reset(System.currentTimeMillis());
 		}
 	}
 
-	public String allowLog(String key, String msg) {
-		long now = System.currentTimeMillis();
-		long windowMs = config != null ? Math.max(250L, config.logWindowMs) : 60_000L;
+	/**
+	 * Takes a token from the address's vote bucket. Addresses that relay votes
+	 * for many sources are not limited: allow-listed addresses, tunnel
+	 * endpoints that did not name a client, and loopback or private addresses
+	 * where a forwarding proxy sits.
+	 *
+	 * @return false if the address is over its vote rate
+	 */
+	public boolean tryAcquireAddressVote(String remoteIp) {
+		ThrottleConfig config = this.config;
+		if (config == null || !config.enabled || config.addressVoteIntervalUs <= 0 || isAllowed(remoteIp)
+				|| config.tunnelNetworks.contains(remoteIp) || LOCAL_NETWORKS.contains(remoteIp)) {
+			return true;
+		}
+		long nowUs = System.currentTimeMillis() * 1000L;
+		VoteBucket bucket = addressBuckets.getOrCreate(remoteIp, VoteBucket::new);
+		if (bucket.tryAcquire(nowUs, config.addressVoteIntervalUs, config.addressVoteBurst)) {
+			return true;
+		}
+		addressVotesLimited.increment();
+		return false;
+	}
 
-		LogState state = logStates.get(key);
-		if (state == null) {
-			LogState created = new LogState();
-			LogState existing = logStates.putIfAbsent(key, created);
-			state = existing == null ? created : existing;
+	/**
+	 * Takes a token from the vote bucket of a service (vote site), whichever
+	 * address it delivers from.
+	 *
+	 * @return false if the service is over its vote rate
+	 */
+	public boolean tryAcquireServiceVote(String serviceName) {
+		ThrottleConfig config = this.config;
+		if (config == null || !config.enabled || config.serviceVoteIntervalUs <= 0) {
+			return true;
+		}
+		long nowUs = System.currentTimeMillis() * 1000L;
+		VoteBucket bucket = serviceBuckets.getOrCreate(String.valueOf(serviceName), VoteBucket::new);
+		if (bucket.tryAcquire(nowUs, config.serviceVoteIntervalUs, config.serviceVoteBurst)) {
+			return true;
 		}
+		serviceVotesLimited.increment();
+		return false;
+	}
+
+	public long getAddressVotesLimitedCount() {
+		return addressVotesLimited.sum();
+	}
 
-		if (now - state.lastLogMs >= windowMs) {
-			int suppressed = state.suppressed;
-			state.suppressed = 0;
-			state.lastLogMs = now;
+	public long getServiceVotesLimitedCount() {
+		return serviceVotesLimited.sum();
+	}
 
-			if (suppressed > 0) {
-				return msg + " (suppressed " + suppressed + " similar in last " + windowMs + "ms)";
+	/**
+	 * Writes every address and subnet whose failure window, throttle or ban
+	 * is still running to {@code file}.
+	 *
+	 * @return the number of entries written
+	 */
+	public int saveSnapshot(Path file) throws IOException {
+		long now = System.currentTimeMillis();
+		ThrottleSnapshot snapshot = new ThrottleSnapshot(now);
+		throttleStates.forEach((hi, lo, state) -> {
+			if (expiresAt(state) > now) {
+				snapshot.add(false, hi, lo, state.window.get(), state.blockedUntilMs.get());
 			}
-			return msg;
-		}
+		});
+		subnetStates.forEach((hi, lo, state) -> {
+			if (expiresAt(state) > now) {
+				snapshot.add(true, hi, lo, state.window.get(), state.blockedUntilMs.get());
+			}
+		});
+		snapshot.writeTo(file);
+		return snapshot.size();
+	}
 
-		state.suppressed++;
-		return null;
+	/**
+	 * Restores entries saved by {@link #saveSnapshot(Path)}, skipping those
+	 * that have expired since. An entry already tracked keeps its failures
+	 * and takes the later of the two blocks.
+	 *
+	 * @return the number of entries restored
+	 */
+	public int loadSnapshot(Path file) throws IOException {
+		long now = System.currentTimeMillis();
+		ThrottleConfig config = this.config;
+		long windowMs = config == null ? 0L : config.windowMs;
+		return ThrottleSnapshot.read(file, (subnet, hi, lo, window, blockedUntilMs) -> {
+			long windowStartMs = window >>> ThrottleState.COUNT_BITS;
+			if (Math.max(windowStartMs + windowMs, blockedUntilMs) <= now) {
+				return false;
+			}
+			IpStateMap<ThrottleState> states = subnet ? subnetStates : throttleStates;
+			states.getOrCreate(hi, lo, () -> new ThrottleState(window, blockedUntilMs)).blockUntil(blockedUntilMs);
+			return true;
+		});
 	}
 
-	public void logWarning(VoteReceiver receiver, String key, String message) {
-		String allowed = allowLog(key, message);
-		if (allowed != null) {
-			receiver.logWarning(allowed);
-		}
+	public long getFailureCount(ThrottleFailure failure) {
+		return failureCounts.get(failure).sum();
 	}
 
 	public void logSocketError(String remoteIp, SocketException ex) {
@@ -151,14 +392,36 @@ public class VoteThrottleService {
 	public void logGenericError(String remoteIp, Exception ex) {
 	}
 
-	private ThrottleState getThrottleState(String key) {
-		ThrottleState state = throttleStates.get(key);
-		if (state == null) {
-			ThrottleState created = new ThrottleState();
-			created.windowStartMs = System.currentTimeMillis();
-			ThrottleState existing = throttleStates.putIfAbsent(key, created);
-			state = existing == null ? created : existing;
-		}
-		return state;
+	/**
+	 * A throttle entry matters until its failure window, throttle and ban
+	 * have all run out.
+	 */
+	private long expiresAt(ThrottleState state) {
+		ThrottleConfig config = this.config;
+		long windowMs = config == null ? 0L : config.windowMs;
+		return Math.max(state.windowStartMs() + windowMs, state.blockedUntilMs.get());
+	}
+
+	/**
+	 * A vote bucket matters until it has refilled completely.
+	 */
+	private long expiresAt(VoteBucket bucket) {
+		return bucket.fullAtUs.get() / 1000L;
+	}
+
+	public IpStateMap<?> getThrottleStates() {
+		return throttleStates;
+	}
+
+	public IpStateMap<?> getSubnetStates() {
+		return subnetStates;
+	}
+
+	public IpStateMap<?> getAddressBuckets() {
+		return addressBuckets;
+	}
+
+	public ExpiringStateMap<?> getServiceBuckets() {
+		return serviceBuckets;
 	}
 }
@@ -21,6 +21,7 @@ package com.vexsoftware.votifier.paper;
 
 import java.io.File;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.security.Key;
 import java.security.KeyPair;
 import java.util.Collections;
@@ -40,10 +41,12 @@ import com.vexsoftware.votifier.common.crypto.RSAKeygen;
 import com.vexsoftware.votifier.common.crypto.TokenUtil;
 import com.vexsoftware.votifier.model.Vote;
 import com.vexsoftware.votifier.model.VotifierEvent;
+import com.vexsoftware.votifier.common.net.ReceiverConfig;
 import com.vexsoftware.votifier.common.net.SharedVoteReceiver;
 import com.vexsoftware.votifier.common.net.ThrottleConfig;
 import com.vexsoftware.votifier.common.net.VotePlatform;
 import com.vexsoftware.votifier.common.net.VoteReceiver;
+import com.vexsoftware.votifier.common.net.VoteThrottleService;
 import com.vexsoftware.votifier.paper.vote.PendingVoteManager;
 
 public class VotifierPlus extends JavaPlugin {
@@ -64,7 +67,13 @@ public class VotifierPlus extends JavaPlugin {
 	public Config getConfigFile() { return configFile; }
 	public VoteReceiver getVoteReceiver() { return voteReceiver; }
 	public KeyPair getKeyPair() { return keyPair; }
-	public void setKeyPair(KeyPair keyPair) { this.keyPair = keyPair; }
+	public void setKeyPair(KeyPair keyPair) {
+		this.keyPair = keyPair;
+		if (voteReceiver != null && !voteReceiver.reload()) {
+			getLogger().warning("Running vote receiver could not take the new RSA keys, restarting it.");
+			restartVoteReceiver();
+		}
+	}
 
 	private void loadTokens() {
 		tokens.clear();
@@ -131,10 +140,23 @@ public class VotifierPlus extends JavaPlugin {
 		}
 
 		this.pendingVoteManager = new PendingVoteManager(this, configFile.getPendingVoteDelay());
-		loadVoteReceiver();
+		loadVoteReceiver(null);
 	}
 
-	private void loadVoteReceiver() {
+	private static Set<String> readAddresses(ConfigurationSection root, String key) {
+		java.util.List<String> ips = root.getStringList(key);
+		Set<String> addresses = new java.util.HashSet<String>();
+		if (ips != null) {
+			for (String ip : ips) {
+				if (ip != null) { ip = ip.trim(); if (!ip.isEmpty()) addresses.add(ip); }
+			}
+		}
+		return addresses.isEmpty()
+			? Collections.<String>emptySet()
+			: Collections.unmodifiableSet(addresses);
+	}
+
+	private void loadVoteReceiver(VoteThrottleService previousThrottle) {
 		try {
 			voteReceiver = new SharedVoteReceiver(new VotePlatform() {
 
@@ -150,6 +172,7 @@ public class VotifierPlus extends JavaPlugin {
 				@Override public void debugMessage(String msg) { getLogger().info("Debug: " + msg); }
 
 				@Override public String getVersion() { return getDescription().getVersion(); }
+				@Override public Path getDataDirectory() { return getDataFolder().toPath(); }
 
 				@Override public Set<String> getServers() { return configFile.getServers(); }
 
@@ -193,38 +216,94 @@ public class VotifierPlus extends JavaPlugin {
 				public ThrottleConfig getThrottleConfig() {
 					ConfigurationSection root = configFile.getData().getConfigurationSection("ConnectionThrottle");
 					if (root == null) {
-						return new ThrottleConfig(false, Collections.<String>emptySet(),
-							"2m", 20, "5m", 8, "10m", true, 6, "15m", "60s");
+						return ThrottleConfig.builder().enabled(false).build();
 					}
 
-					boolean enabled = root.getBoolean("Enabled", true);
-					java.util.List<String> ips = root.getStringList("TunnelRemoteIps");
-					Set<String> tunnelIps = new java.util.HashSet<String>();
-					if (ips != null) {
-						for (String ip : ips) {
-							if (ip != null) { ip = ip.trim(); if (!ip.isEmpty()) tunnelIps.add(ip); }
-						}
+					int failures = root.getInt("Failures", ThrottleConfig.DEFAULT_FAILURES);
+					return ThrottleConfig.builder()
+						.enabled(root.getBoolean("Enabled", ThrottleConfig.DEFAULT_ENABLED))
+						.tunnelRemoteIps(readAddresses(root, "TunnelRemoteIps"))
+						.proxyProtocol(root.getBoolean("ProxyProtocol", ThrottleConfig.DEFAULT_PROXY_PROTOCOL))
+						.window(root.getString("Window", ThrottleConfig.DEFAULT_WINDOW))
+						.failures(failures)
+						.throttleFor(root.getString("ThrottleFor", ThrottleConfig.DEFAULT_THROTTLE_FOR))
+						.tunnelFailures(root.getInt("TunnelFailures", Math.max(3, failures / 2)))
+						.tunnelThrottleFor(root.getString("TunnelThrottleFor", ThrottleConfig.DEFAULT_TUNNEL_THROTTLE_FOR))
+						.perClientBanEnabled(root.getBoolean("PerClientBan.Enabled",
+							ThrottleConfig.DEFAULT_PER_CLIENT_BAN_ENABLED))
+						.perClientBanFailures(root.getInt("PerClientBan.Failures",
+							ThrottleConfig.DEFAULT_PER_CLIENT_BAN_FAILURES))
+						.perClientBanFor(root.getString("PerClientBan.BanFor", ThrottleConfig.DEFAULT_PER_CLIENT_BAN_FOR))
+						.logWindow(root.getString("LogWindow", ThrottleConfig.DEFAULT_LOG_WINDOW))
+						.maxTracked(root.getInt("MaxTrackedEntries", ThrottleConfig.DEFAULT_MAX_TRACKED))
+						.allowList(readAddresses(root, "AllowList"))
+						.denyList(readAddresses(root, "DenyList"))
+						.subnetFailures(root.getInt("SubnetThrottle.Failures", ThrottleConfig.DEFAULT_SUBNET_FAILURES))
+						.subnetV4Prefix(root.getInt("SubnetThrottle.IPv4Prefix", ThrottleConfig.DEFAULT_SUBNET_V4_PREFIX))
+						.subnetV6Prefix(root.getInt("SubnetThrottle.IPv6Prefix", ThrottleConfig.DEFAULT_SUBNET_V6_PREFIX))
+						.addressVotes(root.getInt("VoteRateLimit.PerAddress.Votes", ThrottleConfig.DEFAULT_ADDRESS_VOTES))
+						.addressVotesPer(root.getString("VoteRateLimit.PerAddress.Per",
+							ThrottleConfig.DEFAULT_ADDRESS_VOTES_PER))
+						.addressVoteBurst(root.getInt("VoteRateLimit.PerAddress.Burst",
+							ThrottleConfig.DEFAULT_ADDRESS_VOTE_BURST))
+						.serviceVotes(root.getInt("VoteRateLimit.PerService.Votes", ThrottleConfig.DEFAULT_SERVICE_VOTES))
+						.serviceVotesPer(root.getString("VoteRateLimit.PerService.Per",
+							ThrottleConfig.DEFAULT_SERVICE_VOTES_PER))
+						.serviceVoteBurst(root.getInt("VoteRateLimit.PerService.Burst",
+							ThrottleConfig.DEFAULT_SERVICE_VOTE_BURST))
+						.snapshotInterval(root.getString("SnapshotInterval", ThrottleConfig.DEFAULT_SNAPSHOT_INTERVAL))
+						.scanWeight(root.getInt("ScanWeight", ThrottleConfig.DEFAULT_SCAN_WEIGHT))
+						.build();
+				}
+
+				@Override
+				public ReceiverConfig getReceiverConfig() {
+					ConfigurationSection root = configFile.getData().getConfigurationSection("Receiver");
+					if (root == null) {
+						return ReceiverConfig.defaults();
 					}
-					Set<String> finalTunnelIps = tunnelIps.isEmpty()
-						? Collections.<String>emptySet()
-						: Collections.unmodifiableSet(tunnelIps);
-
-					String window = root.getString("Window", "2m");
-					int failures = root.getInt("Failures", 20);
-					String throttleFor = root.getString("ThrottleFor", "5m");
-					int tunnelFailures = root.getInt("TunnelFailures", Math.max(3, failures / 2));
-					String tunnelThrottleFor = root.getString("TunnelThrottleFor", "10m");
-
-					ConfigurationSection ban = root.getConfigurationSection("PerClientBan");
-					boolean banEnabled = ban == null ? true : ban.getBoolean("Enabled", true);
-					int banFailures = ban == null ? 6 : ban.getInt("Failures", 6);
-					String banFor = ban == null ? "15m" : ban.getString("BanFor", "15m");
-					String logWindow = root.getString("LogWindow", "60s");
-
-					return new ThrottleConfig(enabled, finalTunnelIps, window, failures, throttleFor,
-						tunnelFailures, tunnelThrottleFor, banEnabled, banFailures, banFor, logWindow);
+
+					return ReceiverConfig.builder()
+						.transport(root.getString("Transport", ReceiverConfig.DEFAULT_TRANSPORT))
+						.execution(root.getString("Execution", ReceiverConfig.DEFAULT_EXECUTION))
+						.maxConcurrentDecrypts(root.getInt("MaxConcurrentDecrypts",
+							ReceiverConfig.DEFAULT_MAX_CONCURRENT_DECRYPTS))
+						.connectionWorkersMin(root.getInt("ConnectionWorkers.Min",
+							ReceiverConfig.DEFAULT_CONNECTION_WORKERS_MIN))
+						.connectionWorkersMax(root.getInt("ConnectionWorkers.Max",
+							ReceiverConfig.DEFAULT_CONNECTION_WORKERS_MAX))
+						.connectionQueue(root.getInt("ConnectionWorkers.Queue", ReceiverConfig.DEFAULT_CONNECTION_QUEUE))
+						.forwardWorkersMin(root.getInt("ForwardWorkers.Min", ReceiverConfig.DEFAULT_FORWARD_WORKERS_MIN))
+						.forwardWorkersMax(root.getInt("ForwardWorkers.Max", ReceiverConfig.DEFAULT_FORWARD_WORKERS_MAX))
+						.forwardQueue(root.getInt("ForwardWorkers.Queue", ReceiverConfig.DEFAULT_FORWARD_QUEUE))
+						.forwardOverflow(root.getString("ForwardWorkers.Overflow", ReceiverConfig.DEFAULT_FORWARD_OVERFLOW))
+						.dispatchWorkersMin(root.getInt("DispatchWorkers.Min", ReceiverConfig.DEFAULT_DISPATCH_WORKERS_MIN))
+						.dispatchWorkersMax(root.getInt("DispatchWorkers.Max", ReceiverConfig.DEFAULT_DISPATCH_WORKERS_MAX))
+						.dispatchQueue(root.getInt("DispatchWorkers.Queue", ReceiverConfig.DEFAULT_DISPATCH_QUEUE))
+						.dispatchOverflow(root.getString("DispatchWorkers.Overflow",
+							ReceiverConfig.DEFAULT_DISPATCH_OVERFLOW))
+						.acceptorShards(root.getInt("AcceptorShards", ReceiverConfig.DEFAULT_ACCEPTOR_SHARDS))
+						.acceptBacklog(root.getInt("AcceptBacklog", ReceiverConfig.DEFAULT_ACCEPT_BACKLOG))
+						.maxAcceptsPerSecond(root.getInt("MaxAcceptsPerSecond",
+							ReceiverConfig.DEFAULT_MAX_ACCEPTS_PER_SECOND))
+						.maxConnectionsPerIp(root.getInt("MaxConnectionsPerIp",
+							ReceiverConfig.DEFAULT_MAX_CONNECTIONS_PER_IP))
+						.handshakeTimeout(root.getString("Timeouts.Handshake", ReceiverConfig.DEFAULT_HANDSHAKE_TIMEOUT))
+						.v1Timeout(root.getString("Timeouts.V1", ReceiverConfig.DEFAULT_V1_TIMEOUT))
+						.v2Timeout(root.getString("Timeouts.V2", ReceiverConfig.DEFAULT_V2_TIMEOUT))
+						.replayWindow(root.getString("ReplayCache.Window", ReceiverConfig.DEFAULT_REPLAY_WINDOW))
+						.replayCapacity(root.getInt("ReplayCache.Entries", ReceiverConfig.DEFAULT_REPLAY_CAPACITY))
+						.dedupWindow(root.getString("Deduplication.Window", ReceiverConfig.DEFAULT_DEDUP_WINDOW))
+						.dedupCapacity(root.getInt("Deduplication.Entries", ReceiverConfig.DEFAULT_DEDUP_CAPACITY))
+						.overloadQueuePercent(root.getInt("Overload.QueuePercent",
+							ReceiverConfig.DEFAULT_OVERLOAD_QUEUE_PERCENT))
+						.overloadLatency(root.getString("Overload.Latency", ReceiverConfig.DEFAULT_OVERLOAD_LATENCY))
+						.knownSourceWindow(root.getString("Overload.KnownSourceWindow",
+							ReceiverConfig.DEFAULT_KNOWN_SOURCE_WINDOW))
+						.build();
 				}
 			});
+			voteReceiver.inheritThrottleService(previousThrottle);
 			voteReceiver.start();
 			getLogger().info("Votifier enabled.");
 	} catch (Exception ex) {
@@ -245,9 +324,24 @@ public class VotifierPlus extends JavaPlugin {
 	}
 
 	public void reload() {
-		if (voteReceiver != null) voteReceiver.shutdown();
 		configFile.reloadData();
 		loadTokens();
-		loadVoteReceiver();
+		if (voteReceiver != null && voteReceiver.reload()) {
+			getLogger().info("Votifier configuration reloaded, socket kept open.");
+			return;
+		}
+		restartVoteReceiver();
+	}
+
+	/**
+	 * Replaces the vote receiver with a fresh one, keeping throttle state.
+	 */
+	private void restartVoteReceiver() {
+		VoteThrottleService previousThrottle = null;
+		if (voteReceiver != null) {
+			previousThrottle = voteReceiver.getThrottleService();
+			voteReceiver.shutdown();
+		}
+		loadVoteReceiver(previousThrottle);
 	}
 }
@@ -63,6 +63,7 @@ public class CommandVotifierPlus implements CommandExecutor {
 			case "help" -> { help(sender); return true; }
 			case "reload" -> { return reload(sender); }
 			case "generatekeys" -> { return generateKeys(sender); }
+			case "stats" -> { return stats(sender); }
 			case "test", "vote" -> { return test(sender, args); }
 			default -> sender.sendMessage(ChatColor.RED + "No valid arguments, see /votifierplus help!");
 		}
@@ -77,6 +78,7 @@ public class CommandVotifierPlus implements CommandExecutor {
 		addHelpLine(unsorted, "reload", "Reload the plugin");
 		addHelpLine(unsorted, "generatekeys", "Regenerate votifier keys");
 		addHelpLine(unsorted, "test", "Test votifier connection");
+		addHelpLine(unsorted, "stats", "Show receiver queue and worker stats");
 
 		ArrayList<String> sorted = new ArrayList<String>(unsorted.keySet());
 		Collections.sort(sorted, String.CASE_INSENSITIVE_ORDER);
@@ -131,6 +133,19 @@ public class CommandVotifierPlus implements CommandExecutor {
 		return true;
 	}
 
+	private boolean stats(CommandSender sender) {
+		if (!checkPerm(sender, "stats")) return true;
+		if (plugin.getVoteReceiver() == null) {
+			sender.sendMessage(ChatColor.RED + "Vote receiver is not running");
+			return true;
+		}
+		sender.sendMessage(ChatColor.AQUA + "--- VotifierPlus Stats ---");
+		for (String line : plugin.getVoteReceiver().getStats()) {
+			sender.sendMessage(ChatColor.GRAY + line);
+		}
+		return true;
+	}
+
 	private boolean test(CommandSender sender, String[] args) {
 		if (!checkPerm(sender, "test")) return true;
 		if (args.length < 3) {
@@ -33,7 +33,7 @@ import org.bukkit.entity.Player;
 
 public class VotifierPlusTabCompleter implements TabCompleter {
 
-	private static final String[] ROOT_COMPLETIONS = { "help", "reload", "generatekeys", "test" };
+	private static final String[] ROOT_COMPLETIONS = { "help", "reload", "generatekeys", "test", "stats" };
 
 	@Override
 	public List<String> onTabComplete(CommandSender sender, Command cmd, String alias, String[] args) {
@@ -50,10 +50,12 @@ import com.vexsoftware.votifier.common.crypto.RSAIO;
 import com.vexsoftware.votifier.common.crypto.RSAKeygen;
 import com.vexsoftware.votifier.common.crypto.TokenUtil;
 import com.vexsoftware.votifier.model.Vote;
+import com.vexsoftware.votifier.common.net.ReceiverConfig;
 import com.vexsoftware.votifier.common.net.SharedVoteReceiver;
 import com.vexsoftware.votifier.common.net.ThrottleConfig;
 import com.vexsoftware.votifier.common.net.VotePlatform;
 import com.vexsoftware.votifier.common.net.VoteReceiver;
+import com.vexsoftware.votifier.common.net.VoteThrottleService;
 
 @Plugin(id = "votifierplus")
 public class VotifierPlusVelocity {
@@ -76,7 +78,15 @@ public class VotifierPlusVelocity {
 	public VoteReceiver getVoteReceiver() { return voteReceiver; }
 	public Config getConfig() { return config; }
 	public KeyPair getKeyPair() { return keyPair; }
-	public void setKeyPair(KeyPair k) { keyPair = k; }
+	public void setKeyPair(KeyPair k) {
+		keyPair = k;
+		if (voteReceiver != null && !voteReceiver.reload()) {
+			logger.warn("Running vote receiver could not take the new RSA keys, restarting it.");
+			if (!restartVoteReceiver()) {
+				logger.error("Vote receiver failed to restart; votes are not being received.");
+			}
+		}
+	}
 	public Path getDataDirectory() { return dataDirectory; }
 
 	@Subscribe
@@ -151,7 +161,7 @@ public class VotifierPlusVelocity {
 			logger.error("Error reading configuration file or RSA keys");
 			return;
 		}
-		loadVoteReceiver();
+		loadVoteReceiver(null);
 		logger.info("Votifier velocity loaded.");
 
 		if (firstRun) {
@@ -166,7 +176,22 @@ public class VotifierPlusVelocity {
 		}
 	}
 
-	private boolean loadVoteReceiver() {
+	private static Set<String> readAddresses(ConfigurationNode root, String key) {
+		Set<String> addresses = new HashSet<String>();
+		ConfigurationNode ipsNode = root.node(key);
+		if (!ipsNode.virtual()) {
+			for (ConfigurationNode n : ipsNode.childrenList()) {
+				Object raw = n.raw();
+				if (raw != null) { String s = String.valueOf(raw).trim();
+					if (!s.isEmpty()) addresses.add(s); }
+			}
+		}
+		return addresses.isEmpty()
+			? Collections.<String>emptySet()
+			: Collections.unmodifiableSet(addresses);
+	}
+
+	private boolean loadVoteReceiver(VoteThrottleService previousThrottle) {
 		try {
 			voteReceiver = new SharedVoteReceiver(new VotePlatform() {
 
@@ -182,6 +207,7 @@ public class VotifierPlusVelocity {
 				@Override public void debugMessage(String msg) { logger.info("Debug: " + msg); }
 
 				@Override public String getVersion() { return "1.4.4-SNAPSHOT"; }
+				@Override public Path getDataDirectory() { return dataDirectory; }
 
 				@Override
 				public Set<String> getServers() {
@@ -216,35 +242,105 @@ public class VotifierPlusVelocity {
 				public ThrottleConfig getThrottleConfig() {
 					ConfigurationNode root = config.getNode("ConnectionThrottle");
 					if (root == null || root.virtual()) {
-						return new ThrottleConfig(false, Collections.<String>emptySet(),
-							"2m", 20, "5m", 8, "10m", true, 6, "15m", "60s");
+						return ThrottleConfig.builder().enabled(false).build();
 					}
-					boolean enabled = root.node("Enabled").getBoolean(true);
-					Set<String> tunnelIps = new HashSet<String>();
-					ConfigurationNode ipsNode = root.node("TunnelRemoteIps");
-					if (!ipsNode.virtual()) {
-						for (ConfigurationNode n : ipsNode.childrenList()) {
-							Object raw = n.raw();
-							if (raw != null) { String s = String.valueOf(raw).trim();
-								if (!s.isEmpty()) tunnelIps.add(s); }
-						}
+
+					return ThrottleConfig.builder()
+						.enabled(root.node("Enabled").getBoolean(ThrottleConfig.DEFAULT_ENABLED))
+						.tunnelRemoteIps(readAddresses(root, "TunnelRemoteIps"))
+						.proxyProtocol(root.node("ProxyProtocol").getBoolean(ThrottleConfig.DEFAULT_PROXY_PROTOCOL))
+						.window(root.node("Window").getString(ThrottleConfig.DEFAULT_WINDOW))
+						.failures(root.node("Failures").getInt(ThrottleConfig.DEFAULT_FAILURES))
+						.throttleFor(root.node("ThrottleFor").getString(ThrottleConfig.DEFAULT_THROTTLE_FOR))
+						.tunnelFailures(root.node("TunnelFailures").getInt(ThrottleConfig.DEFAULT_TUNNEL_FAILURES))
+						.tunnelThrottleFor(root.node("TunnelThrottleFor").getString(ThrottleConfig.DEFAULT_TUNNEL_THROTTLE_FOR))
+						.perClientBanEnabled(root.node("PerClientBan", "Enabled")
+							.getBoolean(ThrottleConfig.DEFAULT_PER_CLIENT_BAN_ENABLED))
+						.perClientBanFailures(root.node("PerClientBan", "Failures")
+							.getInt(ThrottleConfig.DEFAULT_PER_CLIENT_BAN_FAILURES))
+						.perClientBanFor(root.node("PerClientBan", "BanFor")
+							.getString(ThrottleConfig.DEFAULT_PER_CLIENT_BAN_FOR))
+						.logWindow(root.node("LogWindow").getString(ThrottleConfig.DEFAULT_LOG_WINDOW))
+						.maxTracked(root.node("MaxTrackedEntries").getInt(ThrottleConfig.DEFAULT_MAX_TRACKED))
+						.allowList(readAddresses(root, "AllowList"))
+						.denyList(readAddresses(root, "DenyList"))
+						.subnetFailures(root.node("SubnetThrottle", "Failures").getInt(ThrottleConfig.DEFAULT_SUBNET_FAILURES))
+						.subnetV4Prefix(root.node("SubnetThrottle", "IPv4Prefix")
+							.getInt(ThrottleConfig.DEFAULT_SUBNET_V4_PREFIX))
+						.subnetV6Prefix(root.node("SubnetThrottle", "IPv6Prefix")
+							.getInt(ThrottleConfig.DEFAULT_SUBNET_V6_PREFIX))
+						.addressVotes(root.node("VoteRateLimit", "PerAddress", "Votes")
+							.getInt(ThrottleConfig.DEFAULT_ADDRESS_VOTES))
+						.addressVotesPer(root.node("VoteRateLimit", "PerAddress", "Per")
+							.getString(ThrottleConfig.DEFAULT_ADDRESS_VOTES_PER))
+						.addressVoteBurst(root.node("VoteRateLimit", "PerAddress", "Burst")
+							.getInt(ThrottleConfig.DEFAULT_ADDRESS_VOTE_BURST))
+						.serviceVotes(root.node("VoteRateLimit", "PerService", "Votes")
+							.getInt(ThrottleConfig.DEFAULT_SERVICE_VOTES))
+						.serviceVotesPer(root.node("VoteRateLimit", "PerService", "Per")
+							.getString(ThrottleConfig.DEFAULT_SERVICE_VOTES_PER))
+						.serviceVoteBurst(root.node("VoteRateLimit", "PerService", "Burst")
+							.getInt(ThrottleConfig.DEFAULT_SERVICE_VOTE_BURST))
+						.snapshotInterval(root.node("SnapshotInterval").getString(ThrottleConfig.DEFAULT_SNAPSHOT_INTERVAL))
+						.scanWeight(root.node("ScanWeight").getInt(ThrottleConfig.DEFAULT_SCAN_WEIGHT))
+						.build();
+				}
+
+				@Override
+				public ReceiverConfig getReceiverConfig() {
+					ConfigurationNode root = config.getNode("Receiver");
+					if (root == null || root.virtual()) {
+						return ReceiverConfig.defaults();
 					}
-					Set<String> finalIps = tunnelIps.isEmpty()
-						? Collections.<String>emptySet()
-						: Collections.unmodifiableSet(tunnelIps);
-
-					return new ThrottleConfig(enabled, finalIps,
-						root.node("Window").getString("2m"),
-						root.node("Failures").getInt(20),
-						root.node("ThrottleFor").getString("5m"),
-						root.node("TunnelFailures").getInt(8),
-						root.node("TunnelThrottleFor").getString("10m"),
-						root.node("PerClientBan").node("Enabled").getBoolean(true),
-						root.node("PerClientBan").node("Failures").getInt(6),
-						root.node("PerClientBan").node("BanFor").getString("15m"),
-						root.node("LogWindow").getString("60s"));
+
+					return ReceiverConfig.builder()
+						.transport(root.node("Transport").getString(ReceiverConfig.DEFAULT_TRANSPORT))
+						.execution(root.node("Execution").getString(ReceiverConfig.DEFAULT_EXECUTION))
+						.maxConcurrentDecrypts(root.node("MaxConcurrentDecrypts")
+							.getInt(ReceiverConfig.DEFAULT_MAX_CONCURRENT_DECRYPTS))
+						.connectionWorkersMin(root.node("ConnectionWorkers", "Min")
+							.getInt(ReceiverConfig.DEFAULT_CONNECTION_WORKERS_MIN))
+						.connectionWorkersMax(root.node("ConnectionWorkers", "Max")
+							.getInt(ReceiverConfig.DEFAULT_CONNECTION_WORKERS_MAX))
+						.connectionQueue(root.node("ConnectionWorkers", "Queue")
+							.getInt(ReceiverConfig.DEFAULT_CONNECTION_QUEUE))
+						.forwardWorkersMin(root.node("ForwardWorkers", "Min")
+							.getInt(ReceiverConfig.DEFAULT_FORWARD_WORKERS_MIN))
+						.forwardWorkersMax(root.node("ForwardWorkers", "Max")
+							.getInt(ReceiverConfig.DEFAULT_FORWARD_WORKERS_MAX))
+						.forwardQueue(root.node("ForwardWorkers", "Queue").getInt(ReceiverConfig.DEFAULT_FORWARD_QUEUE))
+						.forwardOverflow(root.node("ForwardWorkers", "Overflow")
+							.getString(ReceiverConfig.DEFAULT_FORWARD_OVERFLOW))
+						.dispatchWorkersMin(root.node("DispatchWorkers", "Min")
+							.getInt(ReceiverConfig.DEFAULT_DISPATCH_WORKERS_MIN))
+						.dispatchWorkersMax(root.node("DispatchWorkers", "Max")
+							.getInt(ReceiverConfig.DEFAULT_DISPATCH_WORKERS_MAX))
+						.dispatchQueue(root.node("DispatchWorkers", "Queue").getInt(ReceiverConfig.DEFAULT_DISPATCH_QUEUE))
+						.dispatchOverflow(root.node("DispatchWorkers", "Overflow")
+							.getString(ReceiverConfig.DEFAULT_DISPATCH_OVERFLOW))
+						.acceptorShards(root.node("AcceptorShards").getInt(ReceiverConfig.DEFAULT_ACCEPTOR_SHARDS))
+						.acceptBacklog(root.node("AcceptBacklog").getInt(ReceiverConfig.DEFAULT_ACCEPT_BACKLOG))
+						.maxAcceptsPerSecond(root.node("MaxAcceptsPerSecond")
+							.getInt(ReceiverConfig.DEFAULT_MAX_ACCEPTS_PER_SECOND))
+						.maxConnectionsPerIp(root.node("MaxConnectionsPerIp")
+							.getInt(ReceiverConfig.DEFAULT_MAX_CONNECTIONS_PER_IP))
+						.handshakeTimeout(root.node("Timeouts", "Handshake")
+							.getString(ReceiverConfig.DEFAULT_HANDSHAKE_TIMEOUT))
+						.v1Timeout(root.node("Timeouts", "V1").getString(ReceiverConfig.DEFAULT_V1_TIMEOUT))
+						.v2Timeout(root.node("Timeouts", "V2").getString(ReceiverConfig.DEFAULT_V2_TIMEOUT))
+						.replayWindow(root.node("ReplayCache", "Window").getString(ReceiverConfig.DEFAULT_REPLAY_WINDOW))
+						.replayCapacity(root.node("ReplayCache", "Entries").getInt(ReceiverConfig.DEFAULT_REPLAY_CAPACITY))
+						.dedupWindow(root.node("Deduplication", "Window").getString(ReceiverConfig.DEFAULT_DEDUP_WINDOW))
+						.dedupCapacity(root.node("Deduplication", "Entries").getInt(ReceiverConfig.DEFAULT_DEDUP_CAPACITY))
+						.overloadQueuePercent(root.node("Overload", "QueuePercent")
+							.getInt(ReceiverConfig.DEFAULT_OVERLOAD_QUEUE_PERCENT))
+						.overloadLatency(root.node("Overload", "Latency").getString(ReceiverConfig.DEFAULT_OVERLOAD_LATENCY))
+						.knownSourceWindow(root.node("Overload", "KnownSourceWindow")
+							.getString(ReceiverConfig.DEFAULT_KNOWN_SOURCE_WINDOW))
+						.build();
 				}
 			});
+			voteReceiver.inheritThrottleService(previousThrottle);
 			voteReceiver.start();
 			logger.info("Votifier enabled.");
 			return true;
@@ -255,9 +351,25 @@ public class VotifierPlusVelocity {
 	}
 
 	public boolean reload() {
-		if (voteReceiver != null) { voteReceiver.shutdown(); voteReceiver = null; }
 		config.reload();
 		loadTokens();
-		return loadVoteReceiver();
+		if (voteReceiver != null && voteReceiver.reload()) {
+			logger.info("Votifier configuration reloaded, socket kept open.");
+			return true;
+		}
+		return restartVoteReceiver();
+	}
+
+	/**
+	 * Replaces the vote receiver with a fresh one, keeping throttle state.
+	 */
+	private boolean restartVoteReceiver() {
+		VoteThrottleService previousThrottle = null;
+		if (voteReceiver != null) {
+			previousThrottle = voteReceiver.getThrottleService();
+			voteReceiver.shutdown();
+			voteReceiver = null;
+		}
+		return loadVoteReceiver(previousThrottle);
 	}
 }
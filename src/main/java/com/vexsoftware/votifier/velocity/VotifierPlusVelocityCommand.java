@@ -65,6 +65,7 @@ public class VotifierPlusVelocityCommand implements SimpleCommand {
 			case "help" -> help(src);
 			case "reload" -> reload(src);
 			case "generatekeys" -> generateKeys(src);
+			case "stats" -> stats(src);
 			case "test", "vote" -> test(src, args);
 			default -> src.sendMessage(
 				Component.text("No valid arguments, see /votifierplus help").color(NamedTextColor.RED));
@@ -77,6 +78,7 @@ public class VotifierPlusVelocityCommand implements SimpleCommand {
 		src.sendMessage(Component.text("/votifierplus reload - Reload the plugin"));
 		src.sendMessage(Component.text("/votifierplus generatekeys - Regenerate RSA keys"));
 		src.sendMessage(Component.text("/votifierplus test <player> <service> - Test vote connection"));
+		src.sendMessage(Component.text("/votifierplus stats - Show receiver queue and worker stats"));
 	}
 
 	private void reload(CommandSource src) {
@@ -112,6 +114,21 @@ public class VotifierPlusVelocityCommand implements SimpleCommand {
 		src.sendMessage(Component.text("New keys generated").color(NamedTextColor.AQUA));
 	}
 
+	private void stats(CommandSource src) {
+		if (!src.hasPermission(BASE_PERM + ".stats")) {
+			src.sendMessage(Component.text("You do not have permission!").color(NamedTextColor.RED));
+			return;
+		}
+		if (plugin.getVoteReceiver() == null) {
+			src.sendMessage(Component.text("Vote receiver is not running").color(NamedTextColor.RED));
+			return;
+		}
+		src.sendMessage(Component.text("--- VotifierPlus Stats ---").color(NamedTextColor.AQUA));
+		for (String line : plugin.getVoteReceiver().getStats()) {
+			src.sendMessage(Component.text(line).color(NamedTextColor.GRAY));
+		}
+	}
+
 	private void test(CommandSource src, String[] args) {
 		if (!src.hasPermission(BASE_PERM + ".test")) {
 			src.sendMessage(Component.text("You do not have permission!").color(NamedTextColor.RED));